@@ -15,17 +15,45 @@
  */
 package com.redhat.resilience.otel;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
 import com.redhat.resilience.otel.internal.EnvarExtractingPropagator;
+import com.redhat.resilience.otel.internal.GlobalOpenTelemetryDelegate;
+import com.redhat.resilience.otel.internal.ProcessUsageCollector;
+import com.redhat.resilience.otel.internal.RetryingSpanExporter;
+import com.redhat.resilience.otel.internal.SpoolDrainer;
+import com.redhat.resilience.otel.internal.SpoolingSpanExporter;
+import com.redhat.resilience.otel.internal.StackSampler;
+import com.redhat.resilience.otel.internal.StepTimer;
+import com.redhat.resilience.otel.internal.TraceContextManifest;
 
 import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
 import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
 import io.opentelemetry.exporter.otlp.trace.OtlpGrpcSpanExporter;
 import io.opentelemetry.sdk.OpenTelemetrySdk;
 import io.opentelemetry.sdk.resources.Resource;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SdkTracerProviderBuilder;
+import io.opentelemetry.sdk.trace.SpanLimits;
 import io.opentelemetry.sdk.trace.SpanProcessor;
 import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
@@ -43,6 +71,40 @@ public class OTelCLIHelper {
 
     private Span root = null;
 
+    private Scope rootScope = null;
+
+    private boolean registerGlobal = true;
+
+    private boolean registeredGlobal = false;
+
+    private Thread rootThread = null;
+
+    private OpenTelemetrySdk openTelemetry = null;
+
+    private CompletableFuture<Context> pendingRoot = null;
+
+    private Tracer tracer = null;
+
+    private int stepTimerCapacity = 0;
+
+    private long stepThresholdNanos = 0;
+
+    private StepTimer stepTimer = null;
+
+    private boolean captureResourceUsage = false;
+
+    private Duration resourceSamplingInterval = null;
+
+    private ProcessUsageCollector usageCollector = null;
+
+    private Duration profilingInterval = null;
+
+    private Path profilingOutput = null;
+
+    private StackSampler stackSampler = null;
+
+    private SpanLimits spanLimits = null;
+
     /**
      * Setup a {@link OtlpGrpcSpanExporter} exporter with the given endpoint.
      *
@@ -53,6 +115,68 @@ public class OTelCLIHelper {
         return OtlpGrpcSpanExporter.builder().setEndpoint(endpoint).build();
     }
 
+    /**
+     * Setup a {@link OtlpHttpSpanExporter} exporter with the given endpoint. This sends protobuf over plain HTTP, and
+     * is the recommended exporter for CLI tools compiled with GraalVM native-image: the configuration shipped in
+     * META-INF/native-image covers it without any further reflection setup.
+     *
+     * @param endpoint The HTTP endpoint for sending span data, e.g. http://localhost:4318/v1/traces
+     * @return The {@link OtlpHttpSpanExporter} instance
+     */
+    public SpanExporter httpSpanExporter(String endpoint) {
+        return OtlpHttpSpanExporter.builder().setEndpoint(endpoint).build();
+    }
+
+    /**
+     * Wrap an exporter so spans aren't lost when the collector is briefly unavailable, while still letting the CLI
+     * exit quickly. A batch that fails is written to the spool directory (capped at 64 MB, evicting the oldest
+     * first) instead of being retried on the exporting thread, and for the next 5 seconds later batches are spooled
+     * without an attempt. The wrapper immediately starts exporting spooled batches in the background: those left by
+     * earlier executions, then those spooled by this one, retrying up to 3 times with exponential backoff.
+     *
+     * @param exporter The {@link SpanExporter}, which MAY come from {@link OTelCLIHelper#defaultSpanExporter}
+     * @param spoolDirectory The directory holding batches that couldn't be exported
+     * @return The wrapping {@link SpanExporter}
+     */
+    public SpanExporter retryingSpanExporter(SpanExporter exporter, Path spoolDirectory) {
+        RetryingSpanExporter retrying = new RetryingSpanExporter(
+                exporter,
+                spoolDirectory,
+                3,
+                Duration.ofMillis(200),
+                Duration.ofSeconds(5),
+                64L * 1024 * 1024);
+        retrying.startDrain();
+        return retrying;
+    }
+
+    /**
+     * Setup an exporter that writes span batches to a spool directory shared by the tools running on this host,
+     * instead of sending them to a collector. Use this when many tools run in parallel, along with a single
+     * {@link #startSpoolDrainer(SpanExporter, Path, Duration)} that exports their spans together. The spool is capped
+     * at 64 MB, evicting the oldest batches first.
+     *
+     * @param spoolDirectory The directory shared with the drainer
+     * @return The {@link SpoolingSpanExporter} instance
+     */
+    public SpanExporter spoolingSpanExporter(Path spoolDirectory) {
+        return new SpoolingSpanExporter(spoolDirectory, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Start exporting the spans written by {@link #spoolingSpanExporter(Path)} instances, combining up to 2048 spans
+     * into each export. Close the returned drainer to export the remaining spans and shut down the exporter.
+     *
+     * @param exporter The {@link SpanExporter} for the combined batches, which MAY come from
+     *        {@link OTelCLIHelper#defaultSpanExporter}
+     * @param spoolDirectory The directory the tools spool to
+     * @param interval The time between drains
+     * @return The running drainer
+     */
+    public SpanSpoolDrainer startSpoolDrainer(SpanExporter exporter, Path spoolDirectory, Duration interval) {
+        return new SpoolDrainer(exporter, spoolDirectory, 2048, interval, Duration.ofSeconds(10)).start();
+    }
+
     /**
      * Setup a {@link BatchSpanProcessor} with the supplied {@link SpanExporter}.
      *
@@ -71,6 +195,13 @@ public class OTelCLIHelper {
      * <p>
      * When the {@link GlobalOpenTelemetry} setup is done, <b>this method will also start a root span</b>, which enables
      * the CLI execution to use {@link Span#current()} to set attributes directly with no further setup required.
+     * <p>
+     * <b>NOTE:</b> {@link GlobalOpenTelemetry} can only be set once per JVM, and calling
+     * {@link GlobalOpenTelemetry#get()} before it is set fixes it to a no-op instance. If anything does that before the
+     * first call to this method (for example a {@code static} {@link Tracer} field initialized from
+     * {@link GlobalOpenTelemetry#getTracer(String)}), every span created through {@link GlobalOpenTelemetry} is
+     * dropped, and a warning is logged. Get tracers from {@link #getOpenTelemetry()} after this method returns, or
+     * lazily from {@link GlobalOpenTelemetry}.
      *
      * @param serviceName This translates into 'service.name' in the span, which is usually required for span validity
      * @param processor This is a span processor that determines how spans are exported
@@ -87,46 +218,431 @@ public class OTelCLIHelper {
      * <p>
      * When the {@link GlobalOpenTelemetry} setup is done, <b>this method will also start a root span</b>, which enables
      * the CLI execution to use {@link Span#current()} to set attributes directly with no further setup required.
+     * <p>
+     * <b>NOTE:</b> {@link GlobalOpenTelemetry} can only be set once per JVM, and calling
+     * {@link GlobalOpenTelemetry#get()} before it is set fixes it to a no-op instance. If anything does that before the
+     * first call to this method (for example a {@code static} {@link Tracer} field initialized from
+     * {@link GlobalOpenTelemetry#getTracer(String)}), every span created through {@link GlobalOpenTelemetry} is
+     * dropped, and a warning is logged. Get tracers from {@link #getOpenTelemetry()} after this method returns, or
+     * lazily from {@link GlobalOpenTelemetry}.
      *
      * @param serviceName This translates into 'service.name' in the span, which is usually required for span validity
      * @param commandName This is used to name the new span
      * @param processor This is a span processor that determines how spans are exported
      */
     public void startOTel(String serviceName, String commandName, SpanProcessor processor) {
+        initialize(serviceName, processor);
+        if (commandName == null) {
+            commandName = serviceName;
+        }
+
+        Context parentContext = EnvarExtractingPropagator.getInstance().extract(Context.current(), null, null);
+        root = tracer.spanBuilder(commandName).setParent(parentContext).startSpan();
+
+        rootScope = parentContext.with(root).makeCurrent();
+        rootThread = Thread.currentThread();
+        log.debug(
+                "Running with traceId {} spanId {}",
+                Span.current().getSpanContext().getTraceId(),
+                Span.current().getSpanContext().getSpanId());
+    }
+
+    /**
+     * Setup {@link GlobalOpenTelemetry} like {@link #startOTel(String, SpanProcessor)}, but resolve the parent trace
+     * context (including any file: / http: lookups) in the background, so the CLI execution can start its work
+     * immediately.
+     *
+     * @param serviceName This translates into 'service.name' in the span, which is usually required for span validity
+     * @param processor This is a span processor that determines how spans are exported
+     * @return A future that completes with the root span once the parent trace context has been resolved
+     * @see #startOTelAsync(String, String, SpanProcessor)
+     */
+    public CompletableFuture<Span> startOTelAsync(String serviceName, SpanProcessor processor) {
+        return startOTelAsync(serviceName, "cli-execution", processor);
+    }
+
+    /**
+     * Setup {@link GlobalOpenTelemetry} like {@link #startOTel(String, String, SpanProcessor)}, but resolve the parent
+     * trace context (including any file: / http: lookups) in the background, so the CLI execution can start its work
+     * immediately. The overall wall time then becomes the longer of the two, rather than their sum.
+     * <p>
+     * The root span is started once the parent context is available, but its start timestamp is taken when this
+     * method is called, so it still covers the whole execution. <b>NOTE:</b> Because the root span doesn't exist yet
+     * when this returns, it is NOT made current, and spans can't be re-parented later. Until {@link #awaitRoot()} is
+     * called, spans started by the tool become separate traces, and {@link #step(String)} and
+     * {@link #setAttribute(AttributeKey, Supplier)} attach to nothing. Do the untraced part of the work (argument
+     * parsing, reading input) first, then call {@link #awaitRoot()} before the traced part. {@link #stopOTel()} waits
+     * for the resolution to finish before ending the root span.
+     *
+     * @param serviceName This translates into 'service.name' in the span, which is usually required for span validity
+     * @param commandName This is used to name the new span
+     * @param processor This is a span processor that determines how spans are exported
+     * @return A future that completes with the root span once the parent trace context has been resolved
+     */
+    public CompletableFuture<Span> startOTelAsync(String serviceName, String commandName, SpanProcessor processor) {
+        initialize(serviceName, processor);
+        String spanName = commandName == null ? serviceName : commandName;
+
+        Instant startTime = Instant.now();
+        Context currentContext = Context.current();
+        Tracer rootTracer = tracer;
+
+        pendingRoot = CompletableFuture.supplyAsync(() -> {
+            Context parentContext = EnvarExtractingPropagator.getInstance().extract(currentContext, null, null);
+            Span span = rootTracer.spanBuilder(spanName)
+                    .setParent(parentContext)
+                    .setStartTimestamp(startTime)
+                    .startSpan();
+            log.debug(
+                    "Running with traceId {} spanId {}",
+                    span.getSpanContext().getTraceId(),
+                    span.getSpanContext().getSpanId());
+            return parentContext.with(span);
+        });
+
+        return pendingRoot.thenApply(Span::fromContext);
+    }
+
+    /**
+     * Wait for the root span started by {@link #startOTelAsync(String, String, SpanProcessor)}, and make it current
+     * (along with any extracted baggage) on the calling thread, until {@link #stopOTel()}. Spans started afterwards,
+     * {@link #step(String)} and {@link #setAttribute(AttributeKey, Supplier)} then attach to the root span. Call this
+     * from the thread that will call {@link #stopOTel()}.
+     * <p>
+     * After {@link #startOTel(String, String, SpanProcessor)}, or once the root span has been awaited, this just
+     * returns the root span.
+     *
+     * @return The root span, or {@link Span#getInvalid()} if OpenTelemetry hasn't been started
+     */
+    public Span awaitRoot() {
+        if (pendingRoot != null && rootScope == null) {
+            Context rootContext = pendingRoot.join();
+            root = Span.fromContext(rootContext);
+            rootScope = rootContext.makeCurrent();
+            rootThread = Thread.currentThread();
+        }
+        return root == null ? Span.getInvalid() : root;
+    }
+
+    private void initialize(String serviceName, SpanProcessor processor) {
         if (spanProcessor != null) {
             throw new IllegalStateException("startOTel has already been called");
         }
         if (serviceName == null) {
             throw new RuntimeException("serviceName must be passed in");
         }
-        if (commandName == null) {
-            commandName = serviceName;
-        }
 
         spanProcessor = processor;
 
         Resource resource = Resource.getDefault()
                 .merge(Resource.create(Attributes.of(ResourceAttributes.SERVICE_NAME, serviceName)));
 
-        SdkTracerProvider sdkTracerProvider = SdkTracerProvider.builder()
+        SdkTracerProviderBuilder tracerProviderBuilder = SdkTracerProvider.builder()
                 .addSpanProcessor(processor)
-                .setResource(resource)
-                .build();
+                .setResource(resource);
+        if (spanLimits != null) {
+            tracerProviderBuilder.setSpanLimits(spanLimits);
+        }
+        SdkTracerProvider sdkTracerProvider = tracerProviderBuilder.build();
 
         // NOTE the use of EnvarExtractingPropagator here
-        OpenTelemetrySdk openTelemetry = OpenTelemetrySdk.builder()
+        openTelemetry = OpenTelemetrySdk.builder()
                 .setTracerProvider(sdkTracerProvider)
                 .setPropagators(ContextPropagators.create(EnvarExtractingPropagator.getInstance()))
-                .buildAndRegisterGlobal();
+                .build();
+        if (registerGlobal) {
+            registeredGlobal = GlobalOpenTelemetryDelegate.register();
+            if (registeredGlobal) {
+                GlobalOpenTelemetryDelegate.forwardTo(openTelemetry);
+            } else {
+                log.warn(
+                        "GlobalOpenTelemetry was already set, possibly by a GlobalOpenTelemetry.get() call before "
+                                + "startOTel (for example a static Tracer field); spans created through "
+                                + "GlobalOpenTelemetry will not be exported. "
+                                + "Use OTelCLIHelper.getOpenTelemetry() instead");
+            }
+        }
 
-        Context parentContext = EnvarExtractingPropagator.getInstance().extract(Context.current(), null, null);
-        root = openTelemetry.getTracer(serviceName).spanBuilder(commandName).setParent(parentContext).startSpan();
+        tracer = openTelemetry.getTracer(serviceName);
+        if (stepTimerCapacity > 0) {
+            stepTimer = new StepTimer(stepTimerCapacity, stepThresholdNanos);
+        }
+        if (captureResourceUsage) {
+            // leave half of the root span's event limit for the tool's own events
+            SpanLimits limits = spanLimits == null ? SpanLimits.getDefault() : spanLimits;
+            usageCollector = new ProcessUsageCollector(resourceSamplingInterval, limits.getMaxNumberOfEvents() / 2);
+        }
+        if (profilingInterval != null) {
+            stackSampler = new StackSampler(profilingInterval, profilingOutput);
+        }
+    }
 
-        root.makeCurrent();
-        log.debug(
-                "Running with traceId {} spanId {}",
-                Span.current().getSpanContext().getTraceId(),
-                Span.current().getSpanContext().getSpanId());
+    /**
+     * Record {@link #step(String)} calls cheaply into preallocated arrays, instead of creating a span for each step.
+     * Spans are only created at {@link #stopOTel()}, and only for steps that took at least the given threshold. Steps
+     * nest in the innermost step still open on the same thread; a thread's outermost steps are children of the root
+     * span.
+     * <p>
+     * This must be called before {@link #startOTel(String, SpanProcessor)}, and applies to subsequent executions.
+     *
+     * @param capacity The maximum number of steps recorded; further steps are dropped
+     * @param threshold Steps shorter than this are not exported
+     */
+    public void enableStepTimer(int capacity, Duration threshold) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        stepTimerCapacity = capacity;
+        stepThresholdNanos = threshold.toNanos();
+    }
+
+    /**
+     * Go back to creating a span for each {@link #step(String)} call, from the next execution on.
+     */
+    public void disableStepTimer() {
+        stepTimerCapacity = 0;
+    }
+
+    /**
+     * Capture the resources used by the CLI execution (CPU time, current and peak RSS, disk bytes read / written, GC
+     * count / time, thread counts and JIT compilation time), and attach them to the root span as 'process.*' and
+     * 'jvm.*' attributes, named after the semantic conventions, when {@link #stopOTel()} is called. Values are sampled
+     * cheaply from the platform MXBeans and, on Linux, /proc/self; those the platform can't provide are left out.
+     * <p>
+     * This must be called before {@link #startOTel(String, SpanProcessor)}, and applies to subsequent executions.
+     *
+     * @param samplingInterval If not null, also sample periodically at this interval, and attach each sample as a
+     *        'process.usage' event on the root span. At most half of the span's event limit (see
+     *        {@link #setSpanLimits(SpanLimits)}) is used; longer executions are sampled less often to fit.
+     */
+    public void enableResourceUsage(Duration samplingInterval) {
+        captureResourceUsage = true;
+        resourceSamplingInterval = samplingInterval;
+    }
+
+    /**
+     * Stop capturing resource usage, from the next execution on.
+     */
+    public void disableResourceUsage() {
+        captureResourceUsage = false;
+        resourceSamplingInterval = null;
+    }
+
+    /**
+     * Run a lightweight sampling profiler for the CLI execution. It periodically samples the stacks of all runnable
+     * threads (including the fork-join common pool and executor threads), and when {@link #stopOTel()} is called,
+     * attaches a compact summary of the hottest stacks (in folded format) to the root span as a 'cli.profile' event.
+     * <p>
+     * This must be called before {@link #startOTel(String, SpanProcessor)}, and applies to subsequent executions.
+     *
+     * @param interval The time between samples; tens of milliseconds is a reasonable tradeoff
+     * @param foldedOutput If not null, the full profile is also written to this file, in the folded-stack format used
+     *        by flame graph tools
+     */
+    public void enableProfiling(Duration interval, Path foldedOutput) {
+        if (interval == null || interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        profilingInterval = interval;
+        profilingOutput = foldedOutput;
+    }
+
+    /**
+     * Stop profiling, from the next execution on.
+     */
+    public void disableProfiling() {
+        profilingInterval = null;
+        profilingOutput = null;
+    }
+
+    /**
+     * Limit the number of attributes and events, and the length of attribute values, recorded on each span. This
+     * keeps large values such as input file lists or command lines from bloating the exported spans.
+     * <p>
+     * This must be called before {@link #startOTel(String, SpanProcessor)}, and applies to subsequent executions.
+     *
+     * @param limits The limits, e.g. from {@link SpanLimits#builder()}, or null to go back to the SDK defaults
+     */
+    public void setSpanLimits(SpanLimits limits) {
+        spanLimits = limits;
+    }
+
+    /**
+     * Set an attribute on {@link Span#current()}, computing its value only if the span is recording. Use this for
+     * values that are costly to build, so nothing is spent on them when the execution isn't sampled.
+     *
+     * @param key The attribute key
+     * @param value Supplies the attribute value; not called if the current span isn't recording
+     * @param <T> The attribute value type
+     */
+    public <T> void setAttribute(AttributeKey<T> key, Supplier<? extends T> value) {
+        Span span = Span.current();
+        if (span.isRecording()) {
+            span.setAttribute(key, value.get());
+        }
+    }
+
+    /**
+     * Set a string attribute on {@link Span#current()}, computing its value only if the span is recording.
+     *
+     * @param key The attribute key
+     * @param value Supplies the attribute value; not called if the current span isn't recording
+     * @see #setAttribute(AttributeKey, Supplier)
+     */
+    public void setAttribute(String key, Supplier<String> value) {
+        setAttribute(AttributeKey.stringKey(key), value);
+    }
+
+    /**
+     * Start a step (phase) of the CLI execution, such as parse, resolve, build or upload. By default this starts a
+     * span that is a child of {@link Span#current()}, and makes it current until the step is closed. If
+     * {@link #enableStepTimer(int, Duration)} was called, the step is only timed, and turned into a span later.
+     * <p>
+     * If OpenTelemetry hasn't been started, this returns a step that does nothing.
+     *
+     * @param name The name of the step, used as the span name
+     * @return The {@link Step}, to be closed when the phase ends
+     */
+    public Step step(String name) {
+        if (stepTimer != null) {
+            return Step.ofTimer(stepTimer, name);
+        }
+        if (tracer == null) {
+            return Step.NOOP;
+        }
+        return Step.ofSpan(tracer.spanBuilder(name).startSpan());
+    }
+
+    /**
+     * Run the action as a step of the CLI execution.
+     *
+     * @param name The name of the step, used as the span name
+     * @param action The work done in this step
+     * @see #step(String)
+     */
+    public void step(String name, Runnable action) {
+        try (Step ignored = step(name)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Call the action as a step of the CLI execution, and return its result.
+     *
+     * @param name The name of the step, used as the span name
+     * @param action The work done in this step
+     * @param <T> The result type
+     * @return The result of the action
+     * @throws Exception If the action fails
+     * @see #step(String)
+     */
+    public <T> T step(String name, Callable<T> action) throws Exception {
+        try (Step ignored = step(name)) {
+            return action.call();
+        }
+    }
+
+    /**
+     * Add a link from the root span to each upstream trace context in the manifest, for tools that handle work items
+     * from many pipelines in one run. Each manifest line holds a traceparent, optionally followed by whitespace and a
+     * tracestate. The manifest is streamed and parsed on all cores, with bounded memory.
+     * <p>
+     * The SDK keeps at most {@link SpanLimits#getMaxNumberOfLinks()} links per span (128 by default); raise it with
+     * {@link #setSpanLimits(SpanLimits)} for large manifests. If OpenTelemetry hasn't been started, the manifest isn't
+     * read.
+     *
+     * @param manifest The manifest file
+     * @return The number of valid trace contexts read
+     * @throws IOException if the manifest can't be read
+     */
+    public long linkManifest(Path manifest) throws IOException {
+        Span span = rootSpan();
+        if (span == null) {
+            return 0;
+        }
+        return TraceContextManifest.forEach(manifest, Runtime.getRuntime().availableProcessors(), span::addLink);
+    }
+
+    /**
+     * Run the work for each upstream trace context in the manifest, in parallel on all cores. Each item gets its own
+     * span, named <code>spanName</code>, which is a child of the upstream context and links back to the root span of
+     * this execution. The item span is current while the work runs, in the context that was current when this was
+     * called, so its baggage carries over. If the work throws, the exception is recorded on the item span, the
+     * remaining items are still processed, and the first exception is rethrown at the end.
+     * <p>
+     * Item spans end as fast as the work allows, so a large manifest can outrun the exporter. The
+     * {@link BatchSpanProcessor} of {@link #defaultSpanProcessor(SpanExporter)} queues at most 2048 spans and silently
+     * drops the rest; for larger manifests, build one with a bigger
+     * {@link io.opentelemetry.sdk.trace.export.BatchSpanProcessorBuilder#setMaxQueueSize(int)}.
+     * <p>
+     * See {@link #linkManifest(Path)} for the manifest format. If OpenTelemetry hasn't been started, the work still
+     * runs for each item, without spans.
+     *
+     * @param manifest The manifest file
+     * @param spanName The name of the item spans
+     * @param work Handles each item, given its upstream trace context; MUST be thread-safe
+     * @return The number of valid trace contexts read
+     * @throws IOException if the manifest can't be read
+     */
+    public long forEachManifestItem(Path manifest, String spanName, Consumer<SpanContext> work) throws IOException {
+        Span span = rootSpan();
+        Tracer itemTracer = tracer;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (itemTracer == null) {
+            return TraceContextManifest.forEach(manifest, parallelism, work);
+        }
+
+        Context parent = Context.current();
+        return TraceContextManifest.forEach(manifest, parallelism, upstream -> {
+            SpanBuilder builder = itemTracer.spanBuilder(spanName).setParent(parent.with(Span.wrap(upstream)));
+            if (span != null) {
+                builder.addLink(span.getSpanContext());
+            }
+
+            Span item = builder.startSpan();
+            try (Scope ignored = parent.with(item).makeCurrent()) {
+                work.accept(upstream);
+            } catch (RuntimeException e) {
+                item.recordException(e);
+                item.setStatus(StatusCode.ERROR);
+                throw e;
+            } finally {
+                item.end();
+            }
+        });
+    }
+
+    private Span rootSpan() {
+        if (root == null && pendingRoot != null) {
+            return Span.fromContext(pendingRoot.join());
+        }
+        return root;
+    }
+
+    /**
+     * Choose whether {@link #startOTel(String, SpanProcessor)} makes the SDK reachable through
+     * {@link GlobalOpenTelemetry}. The default is to do so: on first use, a forwarding instance is registered as
+     * {@link GlobalOpenTelemetry}, which points at the SDK of each execution until {@link #stopOTel()}, and is a no-op
+     * in between. If another instance was registered globally first, it is left in place, and a warning is logged.
+     * Turn this off in warm JVMs or test runners that manage the global instance themselves, and use
+     * {@link #getOpenTelemetry()} instead.
+     * <p>
+     * This must be called before {@link #startOTel(String, SpanProcessor)}, and applies to subsequent executions.
+     *
+     * @param register Whether to register the SDK globally
+     */
+    public void setRegisterGlobal(boolean register) {
+        registerGlobal = register;
+    }
+
+    /**
+     * Return the OpenTelemetry instance set up by {@link #startOTel(String, SpanProcessor)}, whether or not it was
+     * registered globally.
+     *
+     * @return The current instance, or {@link OpenTelemetry#noop()} if OpenTelemetry hasn't been started
+     */
+    public OpenTelemetry getOpenTelemetry() {
+        return openTelemetry == null ? OpenTelemetry.noop() : openTelemetry;
     }
 
     /**
@@ -139,16 +655,66 @@ public class OTelCLIHelper {
     }
 
     /**
-     * Shutdown the span processor, giving it some time to flush any pending spans out to the exporter.
+     * End the root span, and shutdown the tracer provider (and with it the span processor), giving it some time to
+     * flush any pending spans out to the exporter. This also restores the context that was current before
+     * {@link #startOTel(String, SpanProcessor)}, and points {@link GlobalOpenTelemetry} back at a no-op instance, so
+     * OpenTelemetry can be started again in the same JVM.
+     * <p>
+     * <b>NOTE:</b> The root span's context is made current on the thread that called
+     * {@link #startOTel(String, SpanProcessor)} (or {@link #awaitRoot()}), and can only be restored on that thread.
+     * Call this from the same thread. If it is called from another thread (for example a shutdown hook), the spans are
+     * still ended and flushed, but the starting thread's context is left as it is, and a warning is logged.
      */
     public void stopOTel() {
         if (otelEnabled()) {
+            if (pendingRoot != null) {
+                try {
+                    root = Span.fromContext(pendingRoot.join());
+                } catch (CompletionException e) {
+                    log.warn("Failed to resolve the parent trace context; no root span was recorded", e.getCause());
+                }
+                pendingRoot = null;
+            }
+
             log.debug("Finishing OpenTelemetry instrumentation for {}", root);
+            if (stepTimer != null) {
+                stepTimer.materialize(tracer, root == null ? Span.getInvalid() : root);
+                stepTimer = null;
+            }
+            if (stackSampler != null) {
+                stackSampler.stop(root == null ? Span.getInvalid() : root);
+                stackSampler = null;
+            }
+            if (usageCollector != null) {
+                usageCollector.stop(root == null ? Span.getInvalid() : root);
+                usageCollector = null;
+            }
             if (root != null) {
                 root.end();
             }
-            spanProcessor.close();
+            if (rootScope != null) {
+                if (Thread.currentThread() == rootThread) {
+                    rootScope.close();
+                } else {
+                    log.warn(
+                            "stopOTel() was called on thread {} instead of {}, which started OpenTelemetry; "
+                                    + "leaving the context of {} as it is",
+                            Thread.currentThread().getName(),
+                            rootThread.getName(),
+                            rootThread.getName());
+                }
+                rootScope = null;
+                rootThread = null;
+            }
+            openTelemetry.getSdkTracerProvider().close();
+            if (registeredGlobal) {
+                GlobalOpenTelemetryDelegate.forwardTo(OpenTelemetry.noop());
+                registeredGlobal = false;
+            }
             spanProcessor = null;
+            openTelemetry = null;
+            root = null;
+            tracer = null;
         }
     }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+/**
+ * A running spool drainer, started by {@link OTelCLIHelper#startSpoolDrainer}. Close it when the tools writing to the
+ * spool are done.
+ */
+public interface SpanSpoolDrainer
+        extends AutoCloseable {
+    /**
+     * Stop draining in the background, export whatever is left in the spool, and shut down the exporter.
+     */
+    @Override
+    void close();
+}
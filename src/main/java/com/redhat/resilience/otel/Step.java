@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import com.redhat.resilience.otel.internal.StepTimer;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.context.Scope;
+
+/**
+ * A phase of a CLI execution, started by {@link OTelCLIHelper#step(String)}. Close it (ideally with
+ * try-with-resources) when the phase is done.
+ */
+public final class Step
+        implements AutoCloseable {
+    static final Step NOOP = new Step(null, null, null, -1);
+
+    private final Span span;
+
+    private final Scope scope;
+
+    private final StepTimer timer;
+
+    private final int index;
+
+    private Step(Span span, Scope scope, StepTimer timer, int index) {
+        this.span = span;
+        this.scope = scope;
+        this.timer = timer;
+        this.index = index;
+    }
+
+    static Step ofSpan(Span span) {
+        return new Step(span, span.makeCurrent(), null, -1);
+    }
+
+    static Step ofTimer(StepTimer timer, String name) {
+        return new Step(null, null, timer, timer.start(name));
+    }
+
+    /**
+     * End the step.
+     */
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.end(index);
+        } else if (span != null) {
+            scope.close();
+            span.end();
+        }
+    }
+}
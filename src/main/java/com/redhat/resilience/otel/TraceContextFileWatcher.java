@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static com.redhat.resilience.otel.internal.OTelContextUtil.extractContextFromTraceParent;
+import static com.redhat.resilience.otel.internal.OTelContextUtil.withTraceState;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.redhat.resilience.otel.internal.EnvarExtractingPropagator;
+
+import io.opentelemetry.api.trace.SpanContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Watches a file holding the parent trace context, and keeps the parsed {@link SpanContext} cached for lock-free reads.
+ * This is intended for the Kubernetes sidecar use case, where a new pipeline stage may rewrite a mounted file while the
+ * process keeps running.
+ * <p>
+ * The first line of the file is the traceparent, and the optional second line is the tracestate. The file is re-read
+ * when the {@link WatchService} reports a change in its directory, and in any case whenever its modification time
+ * changes, checked at least once per the configured maximum delay. The polling fallback matters on platforms where the
+ * {@link WatchService} is slow or misses the symlink swap used by Kubernetes volume updates.
+ * <p>
+ * If the file disappears, becomes unreadable, or holds no valid traceparent (for example while a writer has truncated
+ * it but not yet rewritten it), the last known context is retained.
+ * <p>
+ * This is not used automatically for TRACEPARENT=file:... references; create it explicitly and pass it to
+ * {@link EnvarExtractingPropagator#watching(TraceContextFileWatcher)}.
+ *
+ * @see EnvarExtractingPropagator#watching(TraceContextFileWatcher)
+ */
+@Slf4j
+public final class TraceContextFileWatcher
+        implements Supplier<SpanContext>, Closeable {
+    private final Path file;
+
+    private final long maxDelayMillis;
+
+    private final AtomicReference<SpanContext> current = new AtomicReference<>(SpanContext.getInvalid());
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    private FileTime lastModified;
+
+    private TraceContextFileWatcher(Path file, Duration maxDelay) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.maxDelayMillis = Math.max(1, maxDelay.toMillis());
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+        refresh(true);
+
+        this.thread = new Thread(this::run, "otel-trace-context-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Read the file and start watching it for changes.
+     *
+     * @param file The file containing the traceparent, and optionally the tracestate on the second line
+     * @param maxDelay The longest time a change to the file may take to become visible
+     * @return The running watcher, which should be closed when no longer needed
+     * @throws IOException If the file's directory cannot be watched
+     */
+    public static TraceContextFileWatcher start(Path file, Duration maxDelay) throws IOException {
+        TraceContextFileWatcher watcher = new TraceContextFileWatcher(file, maxDelay);
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * Return the most recently parsed trace context. This never blocks or touches the file system.
+     *
+     * @return The cached {@link SpanContext}, or {@link SpanContext#getInvalid()} if none has been read yet
+     */
+    @Override
+    public SpanContext get() {
+        return current.get();
+    }
+
+    /**
+     * Stop watching the file. The last parsed trace context remains available.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.debug("Failed to close watch service for {}", file, e);
+        }
+        thread.interrupt();
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.poll(maxDelayMillis, TimeUnit.MILLISECONDS);
+                boolean changed = false;
+                if (key != null) {
+                    changed = key.pollEvents()
+                            .stream()
+                            .anyMatch(event -> file.getFileName().equals(event.context()));
+                    key.reset();
+                }
+                refresh(changed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped watching {}", file);
+        }
+    }
+
+    /**
+     * Re-read the file straight away, as the watcher thread does when the file changes.
+     */
+    void reread() {
+        refresh(true);
+    }
+
+    private synchronized void refresh(boolean force) {
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            if (!force && modified.equals(lastModified)) {
+                return;
+            }
+
+            SpanContext spanContext = parse(Files.readAllLines(file));
+            if (!spanContext.isValid()) {
+                // probably caught a writer between truncating and rewriting the file; leave lastModified alone, so
+                // the next check reads it again
+                log.debug("No valid trace context in {}; keeping the last known context", file);
+                return;
+            }
+
+            lastModified = modified;
+            if (!spanContext.equals(current.getAndSet(spanContext))) {
+                log.debug("Trace context from {} is now {}", file, spanContext);
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("Trace context file {} does not exist; keeping the last known context", file);
+        } catch (IOException e) {
+            log.debug("Failed to read trace context file {}; keeping the last known context", file, e);
+        }
+    }
+
+    private static SpanContext parse(List<String> lines) {
+        if (lines.isEmpty() || lines.get(0).trim().isEmpty()) {
+            return SpanContext.getInvalid();
+        }
+
+        SpanContext spanContext = extractContextFromTraceParent(lines.get(0).trim());
+        if (!spanContext.isValid() || lines.size() < 2) {
+            return spanContext;
+        }
+
+        return withTraceState(spanContext, lines.get(1).trim());
+    }
+}
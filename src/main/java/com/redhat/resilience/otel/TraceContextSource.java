@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+import io.opentelemetry.api.trace.SpanContext;
+
+/**
+ * A way for a CI system to hand trace context to the tools it runs through environment variables. Implementations are
+ * registered through {@link java.util.ServiceLoader} (in
+ * <code>META-INF/services/com.redhat.resilience.otel.TraceContextSource</code>), and compiled once into a lookup plan
+ * used by the envar-extracting propagator.
+ * <p>
+ * Sources are tried in ascending {@link #getOrder()}, and only when at least one of their environment variables is
+ * set. The first valid {@link SpanContext} wins.
+ */
+public interface TraceContextSource {
+    /**
+     * @return A short name for this source, used in logging
+     */
+    String getName();
+
+    /**
+     * @return The position of this source in the lookup order; lower values are tried first. The Jenkins source uses 0.
+     */
+    default int getOrder() {
+        return 100;
+    }
+
+    /**
+     * @return The environment variables this source reads. The lookup skips the source when none of them are set.
+     */
+    List<String> getEnvars();
+
+    /**
+     * Build the trace context from the environment variable values.
+     *
+     * @param values Returns the value of the environment variable at the given index of {@link #getEnvars()}, with any
+     *        file: / http: reference replaced by the content it points to, or null if it isn't set. Values are resolved
+     *        on demand, so only call this for the variables you need.
+     * @return The {@link SpanContext}, or {@link SpanContext#getInvalid()} if the values don't describe one
+     */
+    SpanContext decode(IntFunction<String> values);
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static com.redhat.resilience.otel.internal.OTelContextUtil.extractContextFromTraceParent;
+import static com.redhat.resilience.otel.internal.OTelContextUtil.withTraceState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import io.opentelemetry.api.trace.SpanContext;
+
+/**
+ * {@link TraceContextSource} for CI systems that expose W3C traceparent / tracestate values under their own
+ * environment variable names. Register a subclass with a no-arg constructor to support a new CI system, for example:
+ *
+ * <pre>
+ * public class GitLabTraceContextSource extends TraceParentTraceContextSource {
+ *     public GitLabTraceContextSource() {
+ *         super("gitlab", 10, "CI_TRACEPARENT", "CI_TRACESTATE");
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * In a native image, also register the subclass's no-arg constructor for reflection, as the service loader creates it.
+ */
+public class TraceParentTraceContextSource
+        implements TraceContextSource {
+    private final String name;
+
+    private final int order;
+
+    private final List<String> envars;
+
+    /**
+     * @param name The name of the source, used in logging
+     * @param order The position of this source in the lookup order
+     * @param traceParentEnvar The variable containing the traceparent
+     * @param traceStateEnvar The variable containing the tracestate, or null if there is none
+     */
+    protected TraceParentTraceContextSource(String name, int order, String traceParentEnvar, String traceStateEnvar) {
+        this.name = name;
+        this.order = order;
+        this.envars = traceStateEnvar == null ? Arrays.asList(traceParentEnvar)
+                : Arrays.asList(traceParentEnvar, traceStateEnvar);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+
+    @Override
+    public List<String> getEnvars() {
+        return envars;
+    }
+
+    @Override
+    public SpanContext decode(IntFunction<String> values) {
+        String traceParentValue = values.apply(0);
+        if (traceParentValue == null) {
+            return SpanContext.getInvalid();
+        }
+
+        SpanContext contextFromParent = extractContextFromTraceParent(traceParentValue);
+        if (!contextFromParent.isValid() || envars.size() < 2) {
+            return contextFromParent;
+        }
+
+        return withTraceState(contextFromParent, values.apply(1));
+    }
+}
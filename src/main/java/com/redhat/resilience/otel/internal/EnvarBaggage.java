@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.baggage.propagation.W3CBaggagePropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads W3C baggage from the BAGGAGE environment variable, which MAY refer to a file: or http: URL (see
+ * {@link EnvarExtractingPropagator#parseURL(String)}). Oversized values are cut back to whole list members, within
+ * the minimum limits of the W3C baggage spec (64 members, 8192 bytes of UTF-8).
+ * <p>
+ * The parsed baggage is cached against the raw variable value, so repeated extractions don't parse it again, or fetch
+ * the URL again. A changed variable value is parsed on the next extraction, but changes to the content of a file: or
+ * http: URL are not picked up while the variable stays the same. A file or URL that can't be read yields no baggage
+ * and isn't cached, so it's read again on the next extraction.
+ */
+@Slf4j
+public final class EnvarBaggage {
+    private static final String ENVAR_BAGGAGE = "BAGGAGE";
+
+    static final int MAX_MEMBERS = 64;
+
+    static final int MAX_LENGTH = 8192;
+
+    private static final String HEADER = W3CBaggagePropagator.getInstance().fields().iterator().next();
+
+    private static final TextMapGetter<String> GETTER = new TextMapGetter<String>() {
+        @Override
+        public Iterable<String> keys(String carrier) {
+            return Collections.singleton(HEADER);
+        }
+
+        @Override
+        public String get(String carrier, String key) {
+            return HEADER.equals(key) ? carrier : null;
+        }
+    };
+
+    private static final class Parsed {
+        private final String raw;
+
+        private final Baggage baggage;
+
+        private Parsed(String raw, Baggage baggage) {
+            this.raw = raw;
+            this.baggage = baggage;
+        }
+    }
+
+    private static final AtomicReference<Parsed> LAST = new AtomicReference<>(new Parsed(null, Baggage.empty()));
+
+    private EnvarBaggage() {
+    }
+
+    /**
+     * @return The baggage from the BAGGAGE environment variable, or {@link Baggage#empty()}
+     */
+    public static Baggage fromEnvars() {
+        String raw = System.getenv(ENVAR_BAGGAGE);
+        Parsed last = LAST.get();
+        if (Objects.equals(raw, last.raw)) {
+            return last.baggage;
+        }
+
+        String value;
+        try {
+            value = EnvarExtractingPropagator.parseURL(raw);
+        } catch (RuntimeException e) {
+            log.warn("Failed to read baggage from {}; will try again on the next extraction", raw, e);
+            return Baggage.empty();
+        }
+
+        Baggage baggage = parse(value);
+        LAST.set(new Parsed(raw, baggage));
+        return baggage;
+    }
+
+    /**
+     * Parse a W3C baggage header value, after applying the size limits.
+     *
+     * @param value The baggage header value
+     * @return The parsed {@link Baggage}, or {@link Baggage#empty()} if there is none
+     */
+    public static Baggage parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Baggage.empty();
+        }
+
+        String limited = limit(value.trim());
+        if (limited.length() < value.trim().length()) {
+            log.debug("Baggage exceeds {} members or {} bytes; dropped the trailing members", MAX_MEMBERS, MAX_LENGTH);
+        }
+
+        Context context = W3CBaggagePropagator.getInstance().extract(Context.root(), limited, GETTER);
+        return Baggage.fromContext(context);
+    }
+
+    /**
+     * Cut the value back to the last whole list member within {@link #MAX_MEMBERS} and {@link #MAX_LENGTH} bytes of
+     * UTF-8, in a single pass.
+     */
+    static String limit(String value) {
+        int members = 1;
+        int lastDelimiter = -1;
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',') {
+                lastDelimiter = i;
+                if (++members > MAX_MEMBERS) {
+                    return value.substring(0, i);
+                }
+            }
+
+            bytes += utf8Length(c);
+            if (bytes > MAX_LENGTH) {
+                return lastDelimiter < 0 ? "" : value.substring(0, lastDelimiter);
+            }
+        }
+        return value;
+    }
+
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isHighSurrogate(c)) {
+            // the whole supplementary character; its low surrogate adds nothing
+            return 4;
+        } else if (Character.isLowSurrogate(c)) {
+            return 0;
+        }
+        return 3;
+    }
+}
@@ -15,23 +15,30 @@
  */
 package com.redhat.resilience.otel.internal;
 
-import static com.redhat.resilience.otel.internal.OTelContextUtil.extractContextFromTraceParent;
-import static com.redhat.resilience.otel.internal.OTelContextUtil.extractTraceState;
-
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collection;
-import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import com.redhat.resilience.otel.TraceContextFileWatcher;
+import com.redhat.resilience.otel.TraceContextSource;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.baggage.propagation.W3CBaggagePropagator;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanContext;
-import io.opentelemetry.api.trace.TraceFlags;
-import io.opentelemetry.api.trace.TraceState;
 import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.context.propagation.TextMapGetter;
@@ -47,7 +54,10 @@ import lombok.extern.slf4j.Slf4j;
  * This <b>ONLY</b> works with single-execution tools; if your software uses a processing loop and runs as a daemon of
  * some sort, <b>DO NOT USE THIS.</b>
  * <p>
- * This also uses {@link W3CTraceContextPropagator} to inject trace state into downstream calls.
+ * Baggage is read from the BAGGAGE environment variable (see {@link EnvarBaggage}).
+ * <p>
+ * This also uses {@link W3CTraceContextPropagator} and {@link W3CBaggagePropagator} to inject trace state and baggage
+ * into downstream calls.
  * <p>
  * See also:
  * <a href=
@@ -57,17 +67,25 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class EnvarExtractingPropagator
         implements TextMapPropagator {
-    private static final String ENVAR_TRACE_PARENT = "TRACEPARENT";
+    private static final int URL_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final int URL_READ_TIMEOUT_MILLIS = 10000;
 
-    private static final String ENVAR_TRACE_STATE = "TRACESTATE";
+    private static final TextMapPropagator INJECTOR = TextMapPropagator.composite(
+            W3CTraceContextPropagator.getInstance(),
+            W3CBaggagePropagator.getInstance());
 
-    private static final String ENVAR_TRACE_ID = "TRACE_ID";
+    private static final EnvarExtractingPropagator INSTANCE = new EnvarExtractingPropagator(
+            EnvarExtractingPropagator::extractFromEnvars,
+            EnvarBaggage::fromEnvars);
 
-    private static final String ENVAR_SPAN_ID = "SPAN_ID";
+    private final Supplier<SpanContext> spanContextSource;
 
-    private static final EnvarExtractingPropagator INSTANCE = new EnvarExtractingPropagator();
+    private final Supplier<Baggage> baggageSource;
 
-    private EnvarExtractingPropagator() {
+    private EnvarExtractingPropagator(Supplier<SpanContext> spanContextSource, Supplier<Baggage> baggageSource) {
+        this.spanContextSource = spanContextSource;
+        this.baggageSource = baggageSource;
     }
 
     /**
@@ -80,17 +98,54 @@ public class EnvarExtractingPropagator
     }
 
     /**
-     * Return the set of fields we will inject. These are intended to be fully compatible with the W3C trace context, so
-     * it delegates directly to {@link W3CTraceContextPropagator#fields()}
+     * Return a propagator that resolves the trace context from the environment variables (including any file: / http:
+     * lookups) on its first extraction, and always extracts that context after that. Use this in long-running
+     * processes whose environment doesn't change, such as the Kubernetes sidecar use case, so the request path never
+     * touches {@link System#getenv()} or performs URL resolution.
+     * <p>
+     * Nothing is resolved when the propagator is created, because frameworks may create it during static
+     * initialization: for a native image, that runs on the build machine. If a file: / http: value can't be read, the
+     * snapshot holds no trace context (or baggage), and a warning is logged.
+     *
+     * @return A new propagator that will hold the resolved trace context
+     */
+    public static EnvarExtractingPropagator snapshot() {
+        Memoized<SpanContext> spanContext = new Memoized<>(() -> {
+            try {
+                return extractFromEnvars();
+            } catch (RuntimeException e) {
+                log.warn("Failed to resolve the environment trace context; using none", e);
+                return SpanContext.getInvalid();
+            }
+        });
+        Memoized<Baggage> baggage = new Memoized<>(EnvarBaggage::fromEnvars);
+        return new EnvarExtractingPropagator(spanContext, baggage);
+    }
+
+    /**
+     * Return a propagator that extracts whatever trace context the given watcher has most recently read. Extraction
+     * stays O(1) and lock-free, while changes to the watched file propagate within the watcher's maximum delay. Baggage
+     * is still read from the BAGGAGE environment variable.
+     *
+     * @param watcher The running {@link TraceContextFileWatcher}; the caller remains responsible for closing it
+     * @return A new propagator backed by the watcher
+     */
+    public static EnvarExtractingPropagator watching(TraceContextFileWatcher watcher) {
+        return new EnvarExtractingPropagator(watcher, EnvarBaggage::fromEnvars);
+    }
+
+    /**
+     * Return the set of fields we will inject. These are intended to be fully compatible with the W3C trace context and
+     * baggage, so it combines {@link W3CTraceContextPropagator#fields()} and {@link W3CBaggagePropagator#fields()}
      */
     @Override
     public Collection<String> fields() {
-        return W3CTraceContextPropagator.getInstance().fields();
+        return INJECTOR.fields();
     }
 
     /**
-     * Delegate to {@link W3CTraceContextPropagator#inject(Context, Object, TextMapSetter)} for field injection in the
-     * outgoing context.
+     * Delegate to {@link W3CTraceContextPropagator#inject(Context, Object, TextMapSetter)} and
+     * {@link W3CBaggagePropagator#inject(Context, Object, TextMapSetter)} for field injection in the outgoing context.
      *
      * @param context The context to inject into
      * @param c The instance that contains the tracing context
@@ -99,7 +154,7 @@ public class EnvarExtractingPropagator
      */
     @Override
     public <C> void inject(Context context, C c, TextMapSetter<C> textMapSetter) {
-        W3CTraceContextPropagator.getInstance().inject(context, c, textMapSetter);
+        INJECTOR.inject(context, c, textMapSetter);
     }
 
     /**
@@ -107,9 +162,9 @@ public class EnvarExtractingPropagator
      * if your system uses a processing loop and runs as a daemon of some sort, <b>DO NOT USE THIS.</b>
      * <p>
      * This extraction will reuse the TRACEPARENT, TRACESTATE, TRACE_ID, and SPAN_ID environment variables produced
-     * by Jenkins via the Jenkins Opentelemetry Plugin. It will <b>prefer</b> TRACEPARENT then fall back to
-     * [TRACE_ID + SPAN_ID]. If it can establish a basic trace context from those, it will look for TRACESTATE to
-     * augment the base context information.
+     * by Jenkins via the Jenkins Opentelemetry Plugin (see {@link JenkinsTraceContextSource}), along with any other
+     * {@link TraceContextSource} registered for other CI systems. Baggage in the BAGGAGE environment variable is added
+     * to the context as well.
      *
      * @param context The context to set extracted trace context into
      * @param carrier The instance from which to extract context
@@ -123,7 +178,12 @@ public class EnvarExtractingPropagator
             context = Context.root();
         }
 
-        SpanContext spanContext = extractFromEnvars();
+        Baggage baggage = baggageSource.get();
+        if (!baggage.isEmpty()) {
+            context = context.with(baggage);
+        }
+
+        SpanContext spanContext = spanContextSource.get();
         if (!spanContext.isValid()) {
             return context;
         }
@@ -132,82 +192,99 @@ public class EnvarExtractingPropagator
     }
 
     /**
-     * Read the system environment variables looking for the trace context. If found, return the SpanContext built from
-     * those variables.
+     * Read the system environment variables looking for the trace context, using the sources registered with
+     * {@link TraceContextLookup#getDefault()}. If found, return the SpanContext built from those variables.
      *
-     * @param <C> The instance type; disregarded here
      * @return The {@link SpanContext} or {@link SpanContext#getInvalid()} one if no environment variables are found.
      */
-    private static <C> SpanContext extractFromEnvars() {
-        Map<String, String> envMap = System.getenv();
-
-        SpanContext contextFromParent = null;
+    private static SpanContext extractFromEnvars() {
+        return TraceContextLookup.getDefault().lookup(System.getenv());
+    }
 
-        String traceParentValue = parseURL(envMap.get(ENVAR_TRACE_PARENT));
-        log.info("Trace parent: {}", traceParentValue);
-        if (traceParentValue != null) {
-            contextFromParent = extractContextFromTraceParent(traceParentValue);
-        }
+    /**
+     * Function that takes a string and, if it starts with file: or http: will resolve the target
+     * value and return that instead.
+     * <p>
+     * Local files are read directly through NIO, avoiding the {@link URLConnection} machinery; file: URLs that don't
+     * map to a local path (such as file://host/...) still go through {@link URLConnection}. Remote URLs are fetched
+     * with bounded connect / read timeouts, so an unreachable server cannot hang the CLI execution. Content is decoded
+     * as UTF-8, replacing malformed bytes rather than failing.
+     *
+     * @param value the value to parse
+     * @return either the original value or the new resolved value
+     */
+    public static String parseURL(String value) {
+        String result = value;
 
-        if (contextFromParent == null) {
-            String traceId = parseURL(envMap.get(ENVAR_TRACE_ID));
-            String parentSpanId = parseURL(envMap.get(ENVAR_SPAN_ID));
-            log.debug("Trace ID: {}, Span ID: {}", traceId, parentSpanId);
-            if (traceId != null && !traceId.isEmpty() && parentSpanId != null && !parentSpanId.isEmpty()) {
-                contextFromParent = SpanContext.createFromRemoteParent(
-                        traceId,
-                        parentSpanId,
-                        TraceFlags.getDefault(),
-                        TraceState.getDefault());
+        try {
+            if (result != null && result.startsWith("file")) {
+                Path path = localPath(result);
+                if (path != null) {
+                    try (InputStream in = Files.newInputStream(path)) {
+                        result = readLines(in);
+                    }
+                } else {
+                    result = readURL(result);
+                }
+            } else if (result != null && result.startsWith("http")) {
+                result = readURL(result);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+        return result;
+    }
 
-        if (contextFromParent == null) {
-            return SpanContext.getInvalid();
-        } else if (!contextFromParent.isValid()) {
-            return contextFromParent;
+    private static Path localPath(String value) {
+        try {
+            return Paths.get(new URI(value));
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
         }
+    }
 
-        String traceStateValue = parseURL(envMap.get(ENVAR_TRACE_STATE));
-        log.debug("Trace state: {}", traceStateValue);
-        if (traceStateValue == null || traceStateValue.isEmpty()) {
-            return contextFromParent;
+    private static String readURL(String value) throws IOException {
+        URLConnection conn = new URL(value).openConnection();
+        conn.setConnectTimeout(URL_CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(URL_READ_TIMEOUT_MILLIS);
+        try (InputStream in = conn.getInputStream()) {
+            return readLines(in);
         }
+    }
 
-        try {
-            TraceState traceState = extractTraceState(traceStateValue);
-            return SpanContext.createFromRemoteParent(
-                    contextFromParent.getTraceId(),
-                    contextFromParent.getSpanId(),
-                    contextFromParent.getTraceFlags(),
-                    traceState);
-        } catch (IllegalArgumentException e) {
-            log.debug("Unparseable tracestate header. Returning span context without state.");
-            return contextFromParent;
+    private static String readLines(InputStream in) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.joining(System.lineSeparator()));
         }
     }
 
     /**
-     * Function that takes a string and, if it starts with file: or http: will resolve the target
-     * value and return that instead.
-     *
-     * @param value the value to parse
-     * @return either the original value or the new resolved value
+     * Computes a value on first use, then returns it without locking.
      */
-    public static String parseURL(String value) {
-        String result = value;
+    private static final class Memoized<T>
+            implements Supplier<T> {
+        private final Supplier<T> supplier;
 
-        if (result != null && (result.startsWith("http") || result.startsWith("file"))) {
-            try {
-                URLConnection conn = new URL(result).openConnection();
-                try (BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                    result = reader.lines().collect(Collectors.joining(System.lineSeparator()));
+        private volatile T value;
+
+        private Memoized(Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public T get() {
+            T result = value;
+            if (result == null) {
+                synchronized (this) {
+                    result = value;
+                    if (result == null) {
+                        result = supplier.get();
+                        log.debug("Using static value: {}", result);
+                        value = result;
+                    }
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
+            return result;
         }
-        return result;
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.sdk.autoconfigure.spi.ConfigProperties;
+import io.opentelemetry.sdk.autoconfigure.spi.ConfigurablePropagatorProvider;
+
+/**
+ * {@link ConfigurablePropagatorProvider} to allow autoconfiguration with a propagator that resolves the environment
+ * trace context once, on its first extraction. This allows us to use 'envar-static' in Quarkus application.yaml, even
+ * in native mode, where the SDK is configured while the image is built.
+ */
+public class EnvarSnapshotConfigurablePropagator
+        implements ConfigurablePropagatorProvider {
+    /**
+     * Return a propagator that resolves the environment trace context on first use
+     *
+     * @param configProperties Not used
+     * @return The {@link EnvarExtractingPropagator#snapshot()} instance
+     */
+    @Override
+    public TextMapPropagator getPropagator(ConfigProperties configProperties) {
+        return EnvarExtractingPropagator.snapshot();
+    }
+
+    /**
+     * Return the keyword used for autoconfiguring this context propagator.
+     *
+     * @return 'envar-static'
+     */
+    @Override
+    public String getName() {
+        return "envar-static";
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.TracerBuilder;
+import io.opentelemetry.api.trace.TracerProvider;
+import io.opentelemetry.context.propagation.ContextPropagators;
+
+/**
+ * {@link OpenTelemetry} instance that is registered as {@link GlobalOpenTelemetry} once per JVM, and forwards to the
+ * SDK of the current CLI execution, or to {@link OpenTelemetry#noop()} between executions. Outside of tests,
+ * {@link GlobalOpenTelemetry} can only be set once, so this is what allows the helper to be started and stopped
+ * repeatedly while still being reachable through {@link GlobalOpenTelemetry}.
+ * <p>
+ * Tracers handed out by this instance look up the current SDK when they start a span, so tracers cached across
+ * executions keep working.
+ */
+public final class GlobalOpenTelemetryDelegate
+        implements OpenTelemetry {
+    private static final GlobalOpenTelemetryDelegate INSTANCE = new GlobalOpenTelemetryDelegate();
+
+    private final AtomicReference<OpenTelemetry> current = new AtomicReference<>(OpenTelemetry.noop());
+
+    private final TracerProvider tracerProvider = new ForwardingTracerProvider();
+
+    private GlobalOpenTelemetryDelegate() {
+    }
+
+    /**
+     * Register the delegate as {@link GlobalOpenTelemetry}, unless something else already has been.
+     *
+     * @return true if the delegate is (now) the global instance, false if another instance was registered first
+     */
+    public static boolean register() {
+        try {
+            GlobalOpenTelemetry.set(INSTANCE);
+            return true;
+        } catch (IllegalStateException e) {
+            // already set; see whether it's us, from an earlier execution
+            return GlobalOpenTelemetry.getTracerProvider() == INSTANCE.tracerProvider;
+        }
+    }
+
+    /**
+     * Forward to the given instance, until the next call.
+     *
+     * @param openTelemetry The SDK of the current execution, or {@link OpenTelemetry#noop()} to stop forwarding
+     */
+    public static void forwardTo(OpenTelemetry openTelemetry) {
+        INSTANCE.current.set(openTelemetry);
+    }
+
+    @Override
+    public TracerProvider getTracerProvider() {
+        return tracerProvider;
+    }
+
+    @Override
+    public ContextPropagators getPropagators() {
+        return current.get().getPropagators();
+    }
+
+    private final class ForwardingTracerProvider
+            implements TracerProvider {
+        @Override
+        public Tracer get(String instrumentationScopeName) {
+            return new ForwardingTracer(instrumentationScopeName, null, null);
+        }
+
+        @Override
+        public Tracer get(String instrumentationScopeName, String instrumentationScopeVersion) {
+            return new ForwardingTracer(instrumentationScopeName, instrumentationScopeVersion, null);
+        }
+
+        @Override
+        public TracerBuilder tracerBuilder(String instrumentationScopeName) {
+            return new TracerBuilder() {
+                private String version;
+
+                private String schemaUrl;
+
+                @Override
+                public TracerBuilder setSchemaUrl(String url) {
+                    schemaUrl = url;
+                    return this;
+                }
+
+                @Override
+                public TracerBuilder setInstrumentationVersion(String instrumentationScopeVersion) {
+                    version = instrumentationScopeVersion;
+                    return this;
+                }
+
+                @Override
+                public Tracer build() {
+                    return new ForwardingTracer(instrumentationScopeName, version, schemaUrl);
+                }
+            };
+        }
+    }
+
+    private final class ForwardingTracer
+            implements Tracer {
+        private final String name;
+
+        private final String version;
+
+        private final String schemaUrl;
+
+        private volatile Binding binding = new Binding(null, null);
+
+        private ForwardingTracer(String name, String version, String schemaUrl) {
+            this.name = name;
+            this.version = version;
+            this.schemaUrl = schemaUrl;
+        }
+
+        @Override
+        public SpanBuilder spanBuilder(String spanName) {
+            OpenTelemetry openTelemetry = GlobalOpenTelemetryDelegate.this.current.get();
+            Binding current = binding;
+            if (current.openTelemetry != openTelemetry) {
+                TracerBuilder builder = openTelemetry.tracerBuilder(name);
+                if (version != null) {
+                    builder.setInstrumentationVersion(version);
+                }
+                if (schemaUrl != null) {
+                    builder.setSchemaUrl(schemaUrl);
+                }
+                current = new Binding(openTelemetry, builder.build());
+                binding = current;
+            }
+            return current.tracer.spanBuilder(spanName);
+        }
+    }
+
+    /**
+     * A tracer along with the instance it came from, swapped together so readers never mix them up.
+     */
+    private static final class Binding {
+        private final OpenTelemetry openTelemetry;
+
+        private final Tracer tracer;
+
+        private Binding(OpenTelemetry openTelemetry, Tracer tracer) {
+            this.openTelemetry = openTelemetry;
+            this.tracer = tracer;
+        }
+    }
+}
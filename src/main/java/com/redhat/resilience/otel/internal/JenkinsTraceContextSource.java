@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import static com.redhat.resilience.otel.internal.OTelContextUtil.extractContextFromTraceParent;
+import static com.redhat.resilience.otel.internal.OTelContextUtil.withTraceState;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import com.redhat.resilience.otel.TraceContextSource;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link TraceContextSource} for the TRACEPARENT, TRACESTATE, TRACE_ID, and SPAN_ID environment variables produced by
+ * the Jenkins Opentelemetry Plugin. It will <b>prefer</b> TRACEPARENT then fall back to [TRACE_ID + SPAN_ID]. If it can
+ * establish a basic trace context from those, it will look for TRACESTATE to augment the base context information.
+ * <p>
+ * See also:
+ * <a href=
+ * "https://github.com/jenkinsci/opentelemetry-plugin/blob/master/docs/job-traces.md#environment-variables-for-trace-context-propagation-and-integrations">Jenkins
+ * environment variables</a>.
+ */
+@Slf4j
+public class JenkinsTraceContextSource
+        implements TraceContextSource {
+    private static final int TRACE_PARENT = 0;
+
+    private static final int TRACE_STATE = 1;
+
+    private static final int TRACE_ID = 2;
+
+    private static final int SPAN_ID = 3;
+
+    private static final List<String> ENVARS = Arrays.asList("TRACEPARENT", "TRACESTATE", "TRACE_ID", "SPAN_ID");
+
+    @Override
+    public String getName() {
+        return "jenkins";
+    }
+
+    @Override
+    public int getOrder() {
+        return 0;
+    }
+
+    @Override
+    public List<String> getEnvars() {
+        return ENVARS;
+    }
+
+    @Override
+    public SpanContext decode(IntFunction<String> values) {
+        SpanContext contextFromParent = null;
+
+        String traceParentValue = values.apply(TRACE_PARENT);
+        log.debug("Trace parent: {}", traceParentValue);
+        if (traceParentValue != null) {
+            contextFromParent = extractContextFromTraceParent(traceParentValue);
+        }
+
+        if (contextFromParent == null) {
+            String traceId = values.apply(TRACE_ID);
+            String parentSpanId = values.apply(SPAN_ID);
+            log.debug("Trace ID: {}, Span ID: {}", traceId, parentSpanId);
+            if (traceId != null && !traceId.isEmpty() && parentSpanId != null && !parentSpanId.isEmpty()) {
+                contextFromParent = SpanContext.createFromRemoteParent(
+                        traceId,
+                        parentSpanId,
+                        TraceFlags.getDefault(),
+                        TraceState.getDefault());
+            }
+        }
+
+        if (contextFromParent == null) {
+            return SpanContext.getInvalid();
+        } else if (!contextFromParent.isValid()) {
+            return contextFromParent;
+        }
+
+        String traceStateValue = values.apply(TRACE_STATE);
+        log.debug("Trace state: {}", traceStateValue);
+        return withTraceState(contextFromParent, traceStateValue);
+    }
+}
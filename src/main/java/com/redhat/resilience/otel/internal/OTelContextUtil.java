@@ -17,8 +17,6 @@ package com.redhat.resilience.otel.internal;
 
 import static io.opentelemetry.api.internal.Utils.checkArgument;
 
-import java.util.HashSet;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -56,20 +54,9 @@ public final class OTelContextUtil {
     private static final char TRACESTATE_ENTRY_DELIMITER = ',';
     private static final Pattern TRACESTATE_ENTRY_DELIMITER_SPLIT_PATTERN = Pattern
             .compile("[ \t]*" + TRACESTATE_ENTRY_DELIMITER + "[ \t]*");
-    private static final Set<String> VALID_VERSIONS;
-    private static final String VERSION_00 = "00";
-
-    static {
-        // A valid version is 1 byte representing an 8-bit unsigned integer, version ff is invalid.
-        VALID_VERSIONS = new HashSet<>();
-        for (int i = 0; i < 255; i++) {
-            String version = Long.toHexString(i);
-            if (version.length() < 2) {
-                version = '0' + version;
-            }
-            VALID_VERSIONS.add(version);
-        }
-    }
+    private static final char VERSION_00_CHAR = '0';
+    private static final char INVALID_VERSION_CHAR = 'f';
+    private static final Logger logger = LoggerFactory.getLogger(OTelContextUtil.class);
 
     private OTelContextUtil() {
     }
@@ -83,10 +70,6 @@ public final class OTelContextUtil {
      * @return The SpanContext parsed from the traceparent, or else {@link SpanContext#getInvalid()}
      */
     public static SpanContext extractContextFromTraceParent(String traceparent) {
-        final Logger logger = LoggerFactory.getLogger(OTelContextUtil.class);
-
-        // TODO(bdrutu): Do we need to verify that version is hex and that
-        // for the version the length is the expected one?
         boolean isValid = (traceparent.length() == TRACEPARENT_HEADER_SIZE
                 || (traceparent.length() > TRACEPARENT_HEADER_SIZE
                         && traceparent.charAt(TRACEPARENT_HEADER_SIZE) == TRACEPARENT_DELIMITER))
@@ -98,11 +81,17 @@ public final class OTelContextUtil {
             return SpanContext.getInvalid();
         }
 
-        String version = traceparent.substring(0, 2);
-        if (!VALID_VERSIONS.contains(version)) {
+        // A valid version is 1 byte representing an 8-bit unsigned integer, version ff is invalid. Check the two
+        // characters in place rather than allocating a substring for the lookup.
+        char firstVersionChar = traceparent.charAt(0);
+        char secondVersionChar = traceparent.charAt(1);
+        if (!OtelEncodingUtils.isValidBase16Character(firstVersionChar)
+                || !OtelEncodingUtils.isValidBase16Character(secondVersionChar)
+                || (firstVersionChar == INVALID_VERSION_CHAR && secondVersionChar == INVALID_VERSION_CHAR)) {
             return SpanContext.getInvalid();
         }
-        if (version.equals(VERSION_00) && traceparent.length() > TRACEPARENT_HEADER_SIZE) {
+        if (firstVersionChar == VERSION_00_CHAR && secondVersionChar == VERSION_00_CHAR
+                && traceparent.length() > TRACEPARENT_HEADER_SIZE) {
             return SpanContext.getInvalid();
         }
 
@@ -148,4 +137,29 @@ public final class OTelContextUtil {
         }
         return traceState;
     }
+
+    /**
+     * Add the parsed tracestate to a valid span context, ignoring it if it can't be parsed.
+     *
+     * @param spanContext The valid span context
+     * @param traceStateValue The tracestate value, which MAY be null
+     * @return The span context with the trace state
+     */
+    public static SpanContext withTraceState(SpanContext spanContext, String traceStateValue) {
+        if (traceStateValue == null || traceStateValue.isEmpty()) {
+            return spanContext;
+        }
+
+        try {
+            TraceState traceState = extractTraceState(traceStateValue);
+            return SpanContext.createFromRemoteParent(
+                    spanContext.getTraceId(),
+                    spanContext.getSpanId(),
+                    spanContext.getTraceFlags(),
+                    traceState);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Unparseable tracestate header. Returning span context without state.");
+            return spanContext;
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+
+/**
+ * Point-in-time sample of the resources used by this process so far, read from the platform MXBeans and (on Linux)
+ * from /proc/self. Values that aren't available on the current platform are {@link #UNAVAILABLE}.
+ */
+public final class ProcessUsage {
+    /**
+     * Marker for values the platform can't provide.
+     */
+    public static final long UNAVAILABLE = -1;
+
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    private static final Path PROC_IO = Paths.get("/proc/self/io");
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final double MILLIS_PER_SECOND = 1e3;
+
+    private final long cpuTimeNanos;
+
+    private final long gcCount;
+
+    private final long gcTimeMillis;
+
+    private final long jitTimeMillis;
+
+    private final int threadCount;
+
+    private final int peakThreadCount;
+
+    private final long rssBytes;
+
+    private final long peakRssBytes;
+
+    private final long readBytes;
+
+    private final long writtenBytes;
+
+    private ProcessUsage(
+            long cpuTimeNanos,
+            long gcCount,
+            long gcTimeMillis,
+            long jitTimeMillis,
+            int threadCount,
+            int peakThreadCount,
+            long rssBytes,
+            long peakRssBytes,
+            long readBytes,
+            long writtenBytes) {
+        this.cpuTimeNanos = cpuTimeNanos;
+        this.gcCount = gcCount;
+        this.gcTimeMillis = gcTimeMillis;
+        this.jitTimeMillis = jitTimeMillis;
+        this.threadCount = threadCount;
+        this.peakThreadCount = peakThreadCount;
+        this.rssBytes = rssBytes;
+        this.peakRssBytes = peakRssBytes;
+        this.readBytes = readBytes;
+        this.writtenBytes = writtenBytes;
+    }
+
+    /**
+     * Sample the current resource usage of the process.
+     *
+     * @return The new sample
+     */
+    public static ProcessUsage sample() {
+        long cpuTime = UNAVAILABLE;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            cpuTime = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+
+        long jitTime = UNAVAILABLE;
+        CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+        if (compilation != null && compilation.isCompilationTimeMonitoringSupported()) {
+            jitTime = compilation.getTotalCompilationTime();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        return new ProcessUsage(
+                cpuTime,
+                gcCount,
+                gcTime,
+                jitTime,
+                threads.getThreadCount(),
+                threads.getPeakThreadCount(),
+                readProcValue(PROC_STATUS, "VmRSS:", 1024),
+                readProcValue(PROC_STATUS, "VmHWM:", 1024),
+                readProcValue(PROC_IO, "read_bytes:", 1),
+                readProcValue(PROC_IO, "write_bytes:", 1));
+    }
+
+    /**
+     * Describe the resources used between the given earlier sample and this one. Counters (CPU, GC, JIT, disk I/O) are
+     * reported as deltas, while thread counts and memory are reported as they stand in this sample.
+     * <p>
+     * Names and units follow the OpenTelemetry process and JVM semantic conventions where they define a matching
+     * metric: times are in seconds, sizes in bytes, and the 'process.disk.io' direction becomes a name suffix. Peak
+     * values, the GC count and the JIT time have no convention, and use names in the same style.
+     *
+     * @param since The earlier sample
+     * @return The attributes; unavailable values are left out
+     */
+    public Attributes since(ProcessUsage since) {
+        AttributesBuilder builder = Attributes.builder();
+        if (cpuTimeNanos != UNAVAILABLE && since.cpuTimeNanos != UNAVAILABLE) {
+            builder.put("process.cpu.time", (cpuTimeNanos - since.cpuTimeNanos) / NANOS_PER_SECOND);
+        }
+        if (rssBytes != UNAVAILABLE) {
+            builder.put("process.memory.usage", rssBytes);
+        }
+        if (peakRssBytes != UNAVAILABLE) {
+            builder.put("process.memory.peak", peakRssBytes);
+        }
+        putDelta(builder, "process.disk.io.read", readBytes, since.readBytes);
+        putDelta(builder, "process.disk.io.write", writtenBytes, since.writtenBytes);
+
+        putDelta(builder, "jvm.gc.count", gcCount, since.gcCount);
+        if (gcTimeMillis != UNAVAILABLE && since.gcTimeMillis != UNAVAILABLE) {
+            builder.put("jvm.gc.duration", (gcTimeMillis - since.gcTimeMillis) / MILLIS_PER_SECOND);
+        }
+        if (jitTimeMillis != UNAVAILABLE && since.jitTimeMillis != UNAVAILABLE) {
+            builder.put("jvm.compilation.time", (jitTimeMillis - since.jitTimeMillis) / MILLIS_PER_SECOND);
+        }
+        builder.put("jvm.thread.count", threadCount);
+        builder.put("jvm.thread.peak", peakThreadCount);
+        return builder.build();
+    }
+
+    private static void putDelta(AttributesBuilder builder, String key, long value, long since) {
+        if (value != UNAVAILABLE && since != UNAVAILABLE) {
+            builder.put(key, value - since);
+        }
+    }
+
+    private static long readProcValue(Path file, String key, long multiplier) {
+        try {
+            for (String line : Files.readAllLines(file)) {
+                if (line.startsWith(key)) {
+                    String value = line.substring(key.length()).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space < 0 ? value : value.substring(0, space)) * multiplier;
+                }
+            }
+        } catch (IOException | NumberFormatException | SecurityException e) {
+            // not Linux, or /proc isn't readable
+        }
+        return UNAVAILABLE;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.api.trace.Span;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Captures the resources used by a CLI execution: a baseline {@link ProcessUsage} sample when started, optional
+ * periodic samples in between, and a final sample when stopped. The deltas are attached to the root span as
+ * attributes, and the periodic samples as 'process.usage' events.
+ * <p>
+ * The number of samples is capped, so they fit within the span's event limit. When the cap is reached, every other
+ * sample is dropped and the sampling interval doubles, so the samples still cover the whole execution evenly.
+ */
+@Slf4j
+public final class ProcessUsageCollector {
+    private static final String SAMPLE_EVENT = "process.usage";
+
+    private final ProcessUsage baseline;
+
+    private final List<ProcessUsage> samples = new ArrayList<>();
+
+    private final List<Long> sampleTimes = new ArrayList<>();
+
+    private final ScheduledExecutorService sampler;
+
+    private final int maxSamples;
+
+    private int stride = 1;
+
+    private long ticks = 0;
+
+    /**
+     * Take the baseline sample, and start periodic sampling if an interval is given.
+     *
+     * @param samplingInterval The time between periodic samples, or null to disable them
+     * @param maxSamples The most periodic samples to keep, at least 2
+     */
+    public ProcessUsageCollector(Duration samplingInterval, int maxSamples) {
+        baseline = ProcessUsage.sample();
+        this.maxSamples = Math.max(2, maxSamples);
+
+        if (samplingInterval == null || samplingInterval.isZero() || samplingInterval.isNegative()) {
+            sampler = null;
+            return;
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "otel-process-usage-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = Math.max(1, samplingInterval.toMillis());
+        sampler.scheduleAtFixedRate(this::addSample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void addSample() {
+        if (ticks++ % stride != 0) {
+            return;
+        }
+
+        if (samples.size() == maxSamples) {
+            downsample();
+            if ((ticks - 1) % stride != 0) {
+                return;
+            }
+        }
+        sampleTimes.add(System.currentTimeMillis());
+        samples.add(ProcessUsage.sample());
+    }
+
+    private void downsample() {
+        for (int i = 1, kept = 1; i < samples.size(); i++) {
+            if (i % 2 == 0) {
+                samples.set(kept, samples.get(i));
+                sampleTimes.set(kept++, sampleTimes.get(i));
+            }
+        }
+        int kept = (samples.size() + 1) / 2;
+        samples.subList(kept, samples.size()).clear();
+        sampleTimes.subList(kept, sampleTimes.size()).clear();
+        stride *= 2;
+    }
+
+    /**
+     * Stop periodic sampling, take the final sample, and attach everything to the span.
+     *
+     * @param span The root span of the CLI execution
+     */
+    public void stop(Span span) {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+
+        ProcessUsage end = ProcessUsage.sample();
+        synchronized (this) {
+            for (int i = 0; i < samples.size(); i++) {
+                span.addEvent(SAMPLE_EVENT, samples.get(i).since(baseline), sampleTimes.get(i), TimeUnit.MILLISECONDS);
+            }
+        }
+        span.setAllAttributes(end.since(baseline));
+        log.debug("Process resource usage: {}", end.since(baseline));
+    }
+}
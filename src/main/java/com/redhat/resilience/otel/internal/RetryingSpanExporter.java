@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link SpanExporter} wrapper that keeps spans from being lost when the collector is briefly unavailable, without
+ * holding up the exporting thread or the exit of a CLI execution.
+ * <p>
+ * Each batch is exported once. If that fails, the batch is written to a {@link SpanSpool} straight away, and for the
+ * length of the deadline the following batches are spooled without being attempted, so flushing many batches at exit
+ * during an outage doesn't wait on the collector for each of them. {@link #startDrain()} exports spooled batches
+ * again on a background thread, oldest first: the ones left by earlier executions when it starts, then the ones
+ * spooled by this execution, retrying with exponential backoff. Any successful export ends the outage. Batches still
+ * spooled at exit are drained by the next execution. Several processes may share a spool directory.
+ */
+@Slf4j
+public final class RetryingSpanExporter
+        implements SpanExporter {
+    private final SpanExporter delegate;
+
+    private final SpanSpool spool;
+
+    private final int maxAttempts;
+
+    private final long initialBackoffMillis;
+
+    private final long deadlineMillis;
+
+    /**
+     * Until when batches are spooled without being attempted, after a failed export.
+     */
+    private volatile long outageUntil = 0;
+
+    private volatile boolean draining = false;
+
+    private Thread drainThread;
+
+    /**
+     * Guards {@link #spooled}, and wakes the drain thread when a batch is spooled or the exporter is shut down.
+     */
+    private final Object wakeup = new Object();
+
+    private boolean spooled = false;
+
+    /**
+     * Wrap an exporter.
+     *
+     * @param delegate The exporter doing the actual work
+     * @param spoolDirectory Where batches that can't be exported are kept, or null to drop them
+     * @param maxAttempts The maximum number of times the drain thread retries the spool, backing off in between,
+     *        before it waits for another batch to be spooled
+     * @param initialBackoff The delay before the drain thread's first retry, doubled for each retry after that
+     * @param deadline How long batches are spooled without being attempted after a failed export; also the longest
+     *        the drain thread waits for one export
+     * @param maxSpoolBytes The maximum total size of the spooled batches
+     */
+    public RetryingSpanExporter(
+            SpanExporter delegate,
+            Path spoolDirectory,
+            int maxAttempts,
+            Duration initialBackoff,
+            Duration deadline,
+            long maxSpoolBytes) {
+        this.delegate = delegate;
+        this.spool = spoolDirectory == null ? null : new SpanSpool(spoolDirectory, maxSpoolBytes);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(1, initialBackoff.toMillis());
+        this.deadlineMillis = deadline.toMillis();
+    }
+
+    /**
+     * Start exporting spooled batches, oldest first, on a background thread, until this exporter is shut down.
+     */
+    public synchronized void startDrain() {
+        if (spool == null || drainThread != null) {
+            return;
+        }
+
+        draining = true;
+        drainThread = new Thread(this::drain, "otel-spool-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Export the batch once, without waiting or retrying on the calling thread. If that fails, or the collector failed
+     * within the deadline, the batch is spooled instead.
+     */
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        if (spool == null) {
+            return delegate.export(spans);
+        }
+        if (System.currentTimeMillis() < outageUntil) {
+            log.debug("Collector failed within the retry deadline; spooling {} spans without an attempt", spans.size());
+            return spool(spans);
+        }
+
+        CompletableResultCode result = new CompletableResultCode();
+        CompletableResultCode exported = delegate.export(spans);
+        exported.whenComplete(() -> {
+            if (exported.isSuccess()) {
+                outageUntil = 0;
+                result.succeed();
+            } else {
+                outageUntil = System.currentTimeMillis() + deadlineMillis;
+                if (spool(spans).isSuccess()) {
+                    result.succeed();
+                } else {
+                    result.fail();
+                }
+            }
+        });
+        return result;
+    }
+
+    private CompletableResultCode spool(Collection<SpanData> spans) {
+        if (!spool.write(spans)) {
+            return CompletableResultCode.ofFailure();
+        }
+
+        log.warn("Export of {} spans failed; spooled them to {} for a later retry", spans.size(), spool.getDirectory());
+        synchronized (wakeup) {
+            spooled = true;
+            wakeup.notifyAll();
+        }
+        return CompletableResultCode.ofSuccess();
+    }
+
+    private void drain() {
+        long backoff = 0;
+        int attempts = 0;
+        try {
+            while (true) {
+                pause(backoff);
+                if (!draining) {
+                    return;
+                }
+
+                if (drainPending()) {
+                    attempts = 0;
+                } else if (++attempts < maxAttempts) {
+                    backoff = Math.max(initialBackoffMillis, backoff * 2);
+                    continue;
+                } else {
+                    log.debug("Spooled batches still can't be exported after {} attempts; will retry later", attempts);
+                    attempts = 0;
+                }
+
+                backoff = initialBackoffMillis;
+                awaitSpooled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Export each pending batch once, stopping at the first one that fails.
+     *
+     * @return Whether every pending batch was exported
+     */
+    private boolean drainPending() {
+        for (Path file : spool.pending()) {
+            if (!draining) {
+                return true;
+            }
+
+            Path claimed = spool.claim(file);
+            if (claimed == null) {
+                continue;
+            }
+
+            List<SpanData> spans = spool.read(claimed);
+            if (spans == null) {
+                continue;
+            }
+
+            // Settle the claim only once the export completes, so a slow export is never retried while in flight
+            CompletableResultCode result = delegate.export(spans);
+            result.whenComplete(() -> {
+                if (result.isSuccess()) {
+                    log.debug("Exported {} spooled spans from {}", spans.size(), file);
+                    outageUntil = 0;
+                    spool.delete(claimed);
+                } else {
+                    outageUntil = System.currentTimeMillis() + deadlineMillis;
+                    spool.release(claimed);
+                }
+            });
+            if (!result.join(deadlineMillis, TimeUnit.MILLISECONDS).isSuccess()) {
+                log.debug("Spooled batch {} still can't be exported; will retry later", file);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void pause(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (wakeup) {
+            for (long left = millis; draining && left > 0; left = end - System.currentTimeMillis()) {
+                wakeup.wait(left);
+            }
+        }
+    }
+
+    private void awaitSpooled() throws InterruptedException {
+        synchronized (wakeup) {
+            while (draining && !spooled) {
+                wakeup.wait();
+            }
+            spooled = false;
+        }
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return delegate.flush();
+    }
+
+    /**
+     * Stop draining the spool (waiting up to the deadline for an export in progress), then shut down the wrapped
+     * exporter. Batches that are still spooled are left for the next execution.
+     */
+    @Override
+    public CompletableResultCode shutdown() {
+        Thread thread;
+        synchronized (this) {
+            draining = false;
+            thread = drainThread;
+        }
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join(deadlineMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return delegate.shutdown();
+    }
+}
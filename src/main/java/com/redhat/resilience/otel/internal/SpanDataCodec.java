@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.AttributeType;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.TraceStateBuilder;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+
+/**
+ * Compact binary encoding of {@link SpanData} batches, so spans that couldn't be exported can be kept on disk and
+ * exported again later. This only needs to round-trip between versions of this library, so it's a simple versioned
+ * {@link DataOutputStream} layout rather than OTLP protobuf.
+ */
+public final class SpanDataCodec {
+    // 2: enums are written by name rather than ordinal, so they survive constants being added or reordered
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int MIN_STRING_BYTES = Integer.BYTES;
+
+    private static final int MIN_SPAN_CONTEXT_BYTES = 2 * MIN_STRING_BYTES + 2 + Integer.BYTES;
+
+    private static final int MIN_ATTRIBUTE_BYTES = 2 * MIN_STRING_BYTES + 1;
+
+    private static final int MIN_SPAN_BYTES = 2 * MIN_SPAN_CONTEXT_BYTES;
+
+    private static final int MIN_EVENT_BYTES = MIN_STRING_BYTES + Long.BYTES + 2 * Integer.BYTES;
+
+    private static final int MIN_LINK_BYTES = MIN_SPAN_CONTEXT_BYTES + 2 * Integer.BYTES;
+
+    private SpanDataCodec() {
+    }
+
+    /**
+     * Write a batch of spans.
+     *
+     * @param spans The spans to write
+     * @param out The stream to write to
+     * @throws IOException If writing fails
+     */
+    public static void write(Collection<SpanData> spans, DataOutputStream out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(spans.size());
+        for (SpanData span : spans) {
+            writeSpanContext(span.getSpanContext(), out);
+            writeSpanContext(span.getParentSpanContext(), out);
+            writeString(span.getName(), out);
+            writeString(span.getKind().name(), out);
+            writeString(span.getStatus().getStatusCode().name(), out);
+            writeString(span.getStatus().getDescription(), out);
+            out.writeLong(span.getStartEpochNanos());
+            out.writeLong(span.getEndEpochNanos());
+            out.writeBoolean(span.hasEnded());
+            writeAttributes(span.getAttributes(), out);
+            out.writeInt(span.getTotalAttributeCount());
+
+            out.writeInt(span.getEvents().size());
+            for (EventData event : span.getEvents()) {
+                writeString(event.getName(), out);
+                out.writeLong(event.getEpochNanos());
+                writeAttributes(event.getAttributes(), out);
+                out.writeInt(event.getTotalAttributeCount());
+            }
+            out.writeInt(span.getTotalRecordedEvents());
+
+            out.writeInt(span.getLinks().size());
+            for (LinkData link : span.getLinks()) {
+                writeSpanContext(link.getSpanContext(), out);
+                writeAttributes(link.getAttributes(), out);
+                out.writeInt(link.getTotalAttributeCount());
+            }
+            out.writeInt(span.getTotalRecordedLinks());
+
+            InstrumentationScopeInfo scope = span.getInstrumentationScopeInfo();
+            writeString(scope.getName(), out);
+            writeNullable(scope.getVersion(), out);
+            writeNullable(scope.getSchemaUrl(), out);
+            writeAttributes(scope.getAttributes(), out);
+
+            writeNullable(span.getResource().getSchemaUrl(), out);
+            writeAttributes(span.getResource().getAttributes(), out);
+        }
+    }
+
+    /**
+     * Read a batch of spans written by {@link #write(Collection, DataOutputStream)}. Every count and length in the data
+     * is checked against the bytes that are left, so a corrupt batch fails with an {@link IOException} rather than
+     * allocating whatever the data claims.
+     *
+     * @param in The stream to read from
+     * @param length The number of bytes in the stream
+     * @return The spans
+     * @throws IOException If reading fails, or the data is corrupt or in an unknown format
+     */
+    public static List<SpanData> read(DataInputStream in, long length) throws IOException {
+        Reader reader = new Reader(in, length);
+        int version = reader.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown spooled span format version: " + version);
+        }
+
+        int count = reader.readCount(MIN_SPAN_BYTES);
+        List<SpanData> spans = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SpooledSpanData span = new SpooledSpanData();
+            span.spanContext = readSpanContext(reader);
+            span.parentSpanContext = readSpanContext(reader);
+            span.name = reader.readString();
+            span.kind = reader.readEnum(SpanKind.class);
+            span.status = StatusData.create(reader.readEnum(StatusCode.class), reader.readString());
+            span.startEpochNanos = reader.readLong();
+            span.endEpochNanos = reader.readLong();
+            span.ended = reader.readBoolean();
+            span.attributes = readAttributes(reader);
+            span.totalAttributeCount = reader.readInt();
+
+            int events = reader.readCount(MIN_EVENT_BYTES);
+            span.events = new ArrayList<>(events);
+            for (int e = 0; e < events; e++) {
+                String name = reader.readString();
+                long epochNanos = reader.readLong();
+                Attributes attributes = readAttributes(reader);
+                span.events.add(EventData.create(epochNanos, name, attributes, reader.readInt()));
+            }
+            span.totalRecordedEvents = reader.readInt();
+
+            int links = reader.readCount(MIN_LINK_BYTES);
+            span.links = new ArrayList<>(links);
+            for (int l = 0; l < links; l++) {
+                SpanContext context = readSpanContext(reader);
+                Attributes attributes = readAttributes(reader);
+                span.links.add(LinkData.create(context, attributes, reader.readInt()));
+            }
+            span.totalRecordedLinks = reader.readInt();
+
+            String scopeName = reader.readString();
+            String scopeVersion = reader.readNullable();
+            String scopeSchemaUrl = reader.readNullable();
+            span.scope = InstrumentationScopeInfo.builder(scopeName)
+                    .setVersion(scopeVersion)
+                    .setSchemaUrl(scopeSchemaUrl)
+                    .setAttributes(readAttributes(reader))
+                    .build();
+
+            String resourceSchemaUrl = reader.readNullable();
+            span.resource = Resource.create(readAttributes(reader), resourceSchemaUrl);
+
+            spans.add(span);
+        }
+        return spans;
+    }
+
+    private static void writeSpanContext(SpanContext context, DataOutputStream out) throws IOException {
+        writeString(context.getTraceId(), out);
+        writeString(context.getSpanId(), out);
+        out.writeByte(context.getTraceFlags().asByte());
+        out.writeBoolean(context.isRemote());
+
+        Map<String, String> traceState = context.getTraceState().asMap();
+        out.writeInt(traceState.size());
+        for (Map.Entry<String, String> entry : traceState.entrySet()) {
+            writeString(entry.getKey(), out);
+            writeString(entry.getValue(), out);
+        }
+    }
+
+    private static SpanContext readSpanContext(Reader in) throws IOException {
+        String traceId = in.readString();
+        String spanId = in.readString();
+        TraceFlags traceFlags = TraceFlags.fromByte(in.readByte());
+        boolean remote = in.readBoolean();
+
+        String[] entries = new String[in.readCount(2 * MIN_STRING_BYTES) * 2];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = in.readString();
+        }
+        // Iterate in reverse order because the builder adds each element to the front of the list.
+        TraceStateBuilder traceState = TraceState.builder();
+        for (int i = entries.length - 2; i >= 0; i -= 2) {
+            traceState.put(entries[i], entries[i + 1]);
+        }
+
+        return remote ? SpanContext.createFromRemoteParent(traceId, spanId, traceFlags, traceState.build())
+                : SpanContext.create(traceId, spanId, traceFlags, traceState.build());
+    }
+
+    private static void writeAttributes(Attributes attributes, DataOutputStream out) throws IOException {
+        Map<AttributeKey<?>, Object> map = attributes.asMap();
+        out.writeInt(map.size());
+        for (Map.Entry<AttributeKey<?>, Object> entry : map.entrySet()) {
+            AttributeType type = entry.getKey().getType();
+            writeString(type.name(), out);
+            writeString(entry.getKey().getKey(), out);
+
+            Object value = entry.getValue();
+            switch (type) {
+                case STRING:
+                    writeString((String) value, out);
+                    break;
+                case BOOLEAN:
+                    out.writeBoolean((Boolean) value);
+                    break;
+                case LONG:
+                    out.writeLong((Long) value);
+                    break;
+                case DOUBLE:
+                    out.writeDouble((Double) value);
+                    break;
+                default:
+                    List<?> values = (List<?>) value;
+                    out.writeInt(values.size());
+                    for (Object element : values) {
+                        if (type == AttributeType.STRING_ARRAY) {
+                            writeString((String) element, out);
+                        } else if (type == AttributeType.BOOLEAN_ARRAY) {
+                            out.writeBoolean((Boolean) element);
+                        } else if (type == AttributeType.LONG_ARRAY) {
+                            out.writeLong((Long) element);
+                        } else {
+                            out.writeDouble((Double) element);
+                        }
+                    }
+            }
+        }
+    }
+
+    private static Attributes readAttributes(Reader in) throws IOException {
+        AttributesBuilder builder = Attributes.builder();
+        int size = in.readCount(MIN_ATTRIBUTE_BYTES);
+        for (int i = 0; i < size; i++) {
+            AttributeType type = in.readEnum(AttributeType.class);
+            String key = in.readString();
+            switch (type) {
+                case STRING:
+                    builder.put(AttributeKey.stringKey(key), in.readString());
+                    break;
+                case BOOLEAN:
+                    builder.put(AttributeKey.booleanKey(key), in.readBoolean());
+                    break;
+                case LONG:
+                    builder.put(AttributeKey.longKey(key), in.readLong());
+                    break;
+                case DOUBLE:
+                    builder.put(AttributeKey.doubleKey(key), in.readDouble());
+                    break;
+                case STRING_ARRAY:
+                    List<String> strings = new ArrayList<>();
+                    for (int n = in.readCount(MIN_STRING_BYTES); n > 0; n--) {
+                        strings.add(in.readString());
+                    }
+                    builder.put(AttributeKey.stringArrayKey(key), strings);
+                    break;
+                case BOOLEAN_ARRAY:
+                    List<Boolean> booleans = new ArrayList<>();
+                    for (int n = in.readCount(1); n > 0; n--) {
+                        booleans.add(in.readBoolean());
+                    }
+                    builder.put(AttributeKey.booleanArrayKey(key), booleans);
+                    break;
+                case LONG_ARRAY:
+                    List<Long> longs = new ArrayList<>();
+                    for (int n = in.readCount(Long.BYTES); n > 0; n--) {
+                        longs.add(in.readLong());
+                    }
+                    builder.put(AttributeKey.longArrayKey(key), longs);
+                    break;
+                default:
+                    List<Double> doubles = new ArrayList<>();
+                    for (int n = in.readCount(Double.BYTES); n > 0; n--) {
+                        doubles.add(in.readDouble());
+                    }
+                    builder.put(AttributeKey.doubleArrayKey(key), doubles);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void writeString(String value, DataOutputStream out) throws IOException {
+        // DataOutputStream#writeUTF is limited to 64K, which large attribute values can exceed
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeNullable(String value, DataOutputStream out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(value, out);
+        }
+    }
+
+    /**
+     * Reads from a batch, keeping track of how many bytes are left so counts and lengths can be checked before
+     * anything is allocated for them.
+     */
+    private static final class Reader {
+        private final DataInputStream in;
+
+        private long remaining;
+
+        private Reader(DataInputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        private void consume(long bytes) throws IOException {
+            if (bytes > remaining) {
+                throw new IOException("Spooled batch is truncated or corrupt: need " + bytes + " more bytes, but only "
+                        + remaining + " are left");
+            }
+            remaining -= bytes;
+        }
+
+        private int readUnsignedByte() throws IOException {
+            consume(1);
+            return in.readUnsignedByte();
+        }
+
+        private byte readByte() throws IOException {
+            consume(1);
+            return in.readByte();
+        }
+
+        private boolean readBoolean() throws IOException {
+            consume(1);
+            return in.readBoolean();
+        }
+
+        private int readInt() throws IOException {
+            consume(Integer.BYTES);
+            return in.readInt();
+        }
+
+        private long readLong() throws IOException {
+            consume(Long.BYTES);
+            return in.readLong();
+        }
+
+        private double readDouble() throws IOException {
+            consume(Double.BYTES);
+            return in.readDouble();
+        }
+
+        /**
+         * Read the number of elements that follow.
+         *
+         * @param minBytes The fewest bytes each element can take
+         */
+        private int readCount(int minBytes) throws IOException {
+            int count = readInt();
+            if (count < 0 || (long) count * minBytes > remaining) {
+                throw new IOException("Spooled batch is corrupt: " + count + " elements don't fit in the "
+                        + remaining + " bytes that are left");
+            }
+            return count;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readCount(1)];
+            consume(bytes.length);
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String readNullable() throws IOException {
+            return readBoolean() ? readString() : null;
+        }
+
+        private <E extends Enum<E>> E readEnum(Class<E> type) throws IOException {
+            String name = readString();
+            try {
+                return Enum.valueOf(type, name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Spooled batch has an unknown " + type.getSimpleName() + ": " + name, e);
+            }
+        }
+    }
+
+    /**
+     * {@link SpanData} read back from the spool.
+     */
+    private static final class SpooledSpanData
+            implements SpanData {
+        private SpanContext spanContext;
+
+        private SpanContext parentSpanContext;
+
+        private String name;
+
+        private SpanKind kind;
+
+        private StatusData status;
+
+        private long startEpochNanos;
+
+        private long endEpochNanos;
+
+        private boolean ended;
+
+        private Attributes attributes;
+
+        private int totalAttributeCount;
+
+        private List<EventData> events;
+
+        private int totalRecordedEvents;
+
+        private List<LinkData> links;
+
+        private int totalRecordedLinks;
+
+        private InstrumentationScopeInfo scope;
+
+        private Resource resource;
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public SpanKind getKind() {
+            return kind;
+        }
+
+        @Override
+        public SpanContext getSpanContext() {
+            return spanContext;
+        }
+
+        @Override
+        public SpanContext getParentSpanContext() {
+            return parentSpanContext;
+        }
+
+        @Override
+        public StatusData getStatus() {
+            return status;
+        }
+
+        @Override
+        public long getStartEpochNanos() {
+            return startEpochNanos;
+        }
+
+        @Override
+        public Attributes getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<EventData> getEvents() {
+            return events;
+        }
+
+        @Override
+        public List<LinkData> getLinks() {
+            return links;
+        }
+
+        @Override
+        public long getEndEpochNanos() {
+            return endEpochNanos;
+        }
+
+        @Override
+        public boolean hasEnded() {
+            return ended;
+        }
+
+        @Override
+        public int getTotalRecordedEvents() {
+            return totalRecordedEvents;
+        }
+
+        @Override
+        public int getTotalRecordedLinks() {
+            return totalRecordedLinks;
+        }
+
+        @Override
+        public int getTotalAttributeCount() {
+            return totalAttributeCount;
+        }
+
+        @Override
+        @Deprecated
+        @SuppressWarnings("deprecation")
+        public io.opentelemetry.sdk.common.InstrumentationLibraryInfo getInstrumentationLibraryInfo() {
+            return io.opentelemetry.sdk.common.InstrumentationLibraryInfo
+                    .create(scope.getName(), scope.getVersion(), scope.getSchemaUrl());
+        }
+
+        @Override
+        public InstrumentationScopeInfo getInstrumentationScopeInfo() {
+            return scope;
+        }
+
+        @Override
+        public Resource getResource() {
+            return resource;
+        }
+
+        @Override
+        public String toString() {
+            return "SpooledSpanData{traceId=" + spanContext.getTraceId() + ", spanId=" + spanContext.getSpanId()
+                    + ", name=" + name + '}';
+        }
+    }
+}
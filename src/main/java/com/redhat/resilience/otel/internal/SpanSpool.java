@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.sdk.trace.data.SpanData;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Directory of serialized span batches, which may be shared by several processes. Batches are written to a temporary
+ * file and atomically renamed into place, so readers never see partial batches. Readers claim a batch with another
+ * atomic rename before reading it, so each batch is handled by exactly one process. Batches that can't be read are
+ * quarantined with a {@value #CORRUPT_SUFFIX} suffix, so they can be inspected. The total size is capped, evicting
+ * quarantined batches first and then the oldest batches.
+ */
+@Slf4j
+public final class SpanSpool {
+    private static final String SPOOL_SUFFIX = ".spans";
+
+    private static final String CLAIMED_SUFFIX = ".draining";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final long STALE_CLAIM_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    /**
+     * Use the given directory as a spool.
+     *
+     * @param directory The spool directory; created on the first write
+     * @param maxBytes The maximum total size of the spooled batches
+     */
+    public SpanSpool(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Add a batch to the spool, evicting the oldest batches if that takes it over the size cap.
+     *
+     * @param spans The batch
+     * @return Whether the batch was written
+     */
+    public boolean write(Collection<SpanData> spans) {
+        String name = String.format("%013d-%s", System.currentTimeMillis(), UUID.randomUUID());
+        Path temp = directory.resolve(name + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                SpanDataCodec.write(spans, out);
+            }
+            Files.move(temp, directory.resolve(name + SPOOL_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to spool {} spans to {}", spans.size(), directory, e);
+            delete(temp);
+            return false;
+        }
+
+        evict();
+        return true;
+    }
+
+    private void evict() {
+        List<Path> files = list(CORRUPT_SUFFIX);
+        files.addAll(list(SPOOL_SUFFIX));
+        long total = 0;
+        List<Long> sizes = new ArrayList<>(files.size());
+        for (Path file : files) {
+            long size;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                size = 0;
+            }
+            sizes.add(size);
+            total += size;
+        }
+
+        for (int i = 0; i < files.size() && total > maxBytes; i++) {
+            try {
+                if (Files.deleteIfExists(files.get(i))) {
+                    log.warn("Spool {} is over {} bytes; dropped oldest batch {}", directory, maxBytes,
+                            files.get(i).getFileName());
+                }
+            } catch (IOException e) {
+                log.debug("Failed to evict {}", files.get(i), e);
+            }
+            total -= sizes.get(i);
+        }
+    }
+
+    /**
+     * List the unclaimed batches, oldest first (the file names start with their creation time). Batches claimed by a
+     * process that hasn't finished with them for a long time (probably because it crashed) are made available again
+     * first, and temporary files left behind by writers that crashed are deleted.
+     *
+     * @return The batch files
+     */
+    public List<Path> pending() {
+        long stale = System.currentTimeMillis() - STALE_CLAIM_MILLIS;
+        for (Path claimed : list(CLAIMED_SUFFIX)) {
+            try {
+                if (Files.getLastModifiedTime(claimed).toMillis() < stale) {
+                    release(claimed);
+                }
+            } catch (IOException e) {
+                log.debug("Failed to check claimed batch {}", claimed, e);
+            }
+        }
+        for (Path temp : list(TEMP_SUFFIX)) {
+            try {
+                if (Files.getLastModifiedTime(temp).toMillis() < stale && Files.deleteIfExists(temp)) {
+                    log.debug("Deleted orphaned temporary file {}", temp);
+                }
+            } catch (IOException e) {
+                log.debug("Failed to check temporary file {}", temp, e);
+            }
+        }
+        return list(SPOOL_SUFFIX);
+    }
+
+    /**
+     * Claim a batch, so no other process handles it.
+     *
+     * @param file A batch file from {@link #pending()}
+     * @return The claimed file, or null if another process claimed it first (or it was evicted)
+     */
+    public Path claim(Path file) {
+        Path claimed = file.resolveSibling(file.getFileName() + CLAIMED_SUFFIX);
+        try {
+            Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+            Files.setLastModifiedTime(claimed, FileTime.fromMillis(System.currentTimeMillis()));
+            return claimed;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a claimed batch. Unreadable batches are quarantined, so they're neither retried nor lost.
+     *
+     * @param claimed The file returned from {@link #claim(Path)}
+     * @return The spans, or null if the batch was unreadable
+     */
+    public List<SpanData> read(Path claimed) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(claimed)))) {
+            return SpanDataCodec.read(in, Files.size(claimed));
+        } catch (IOException | RuntimeException e) {
+            quarantine(claimed, e);
+            return null;
+        }
+    }
+
+    private void quarantine(Path claimed, Exception cause) {
+        Path corrupt = claimed.resolveSibling(claimed.getFileName() + CORRUPT_SUFFIX);
+        try {
+            Files.move(claimed, corrupt, StandardCopyOption.ATOMIC_MOVE);
+            log.warn("Quarantined unreadable spooled batch as {}", corrupt, cause);
+        } catch (IOException e) {
+            log.warn("Dropping unreadable spooled batch {}", claimed, cause);
+            delete(claimed);
+        }
+    }
+
+    /**
+     * Return a claimed batch to the spool, so it's retried later.
+     *
+     * @param claimed The file returned from {@link #claim(Path)}
+     */
+    public void release(Path claimed) {
+        String name = claimed.getFileName().toString();
+        Path file = claimed.resolveSibling(name.substring(0, name.length() - CLAIMED_SUFFIX.length()));
+        try {
+            Files.move(claimed, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.debug("Failed to return {} to the spool", file, e);
+        }
+    }
+
+    /**
+     * Remove a claimed batch that has been handled.
+     *
+     * @param claimed The file returned from {@link #claim(Path)}
+     */
+    public void delete(Path claimed) {
+        try {
+            Files.deleteIfExists(claimed);
+        } catch (IOException e) {
+            log.debug("Failed to delete {}", claimed, e);
+        }
+    }
+
+    private List<Path> list(String suffix) {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            log.debug("Failed to list spool directory {}", directory, e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+}
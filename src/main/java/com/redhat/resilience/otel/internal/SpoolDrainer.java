@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.redhat.resilience.otel.SpanSpoolDrainer;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Periodically collects the batches written to a {@link SpanSpool} by {@link SpoolingSpanExporter} instances (usually
+ * in other processes), and exports them as combined batches. Run one of these per spool, for example in the parent
+ * build tool, or as a dedicated agent process.
+ */
+@Slf4j
+public final class SpoolDrainer
+        implements SpanSpoolDrainer {
+    private final SpanExporter exporter;
+
+    private final SpanSpool spool;
+
+    private final int maxBatchSpans;
+
+    private final long intervalMillis;
+
+    private final long exportTimeoutMillis;
+
+    private Thread thread;
+
+    private final Object wakeup = new Object();
+
+    private volatile boolean running = true;
+
+    /**
+     * Drain a spool. Nothing happens in the background until {@link #start()} is called; until then, drain with
+     * {@link #drainOnce()}.
+     *
+     * @param exporter The exporter for the combined batches
+     * @param spoolDirectory The directory the tools spool to
+     * @param maxBatchSpans The number of spans after which no more spooled batches are added to a combined batch
+     * @param interval The time between drains
+     * @param exportTimeout The longest time to wait for each combined export
+     */
+    public SpoolDrainer(
+            SpanExporter exporter,
+            Path spoolDirectory,
+            int maxBatchSpans,
+            Duration interval,
+            Duration exportTimeout) {
+        this.exporter = exporter;
+        this.spool = new SpanSpool(spoolDirectory, Long.MAX_VALUE);
+        this.maxBatchSpans = maxBatchSpans;
+        this.intervalMillis = Math.max(1, interval.toMillis());
+        this.exportTimeoutMillis = exportTimeout.toMillis();
+    }
+
+    /**
+     * Start draining the spool on a background thread, every interval.
+     *
+     * @return This drainer
+     */
+    public synchronized SpoolDrainer start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "otel-spool-drainer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                while (running && drainOnce() > 0) {
+                    // keep going while there's a backlog
+                }
+                synchronized (wakeup) {
+                    if (running) {
+                        wakeup.wait(intervalMillis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Failed to drain span spool {}", spool.getDirectory(), e);
+            }
+        }
+    }
+
+    /**
+     * Export one combined batch from the pending spooled batches, oldest first. The batches are deleted when the
+     * export succeeds, and returned to the spool if it fails. An export that is still running after the export
+     * timeout keeps its batches claimed until it finishes, so they aren't exported twice; if it never finishes, the
+     * spool makes them available again once the claim is stale.
+     *
+     * @return The number of spans exported
+     */
+    public int drainOnce() {
+        List<Path> claimed = new ArrayList<>();
+        List<SpanData> combined = new ArrayList<>();
+
+        for (Path file : spool.pending()) {
+            if (combined.size() >= maxBatchSpans) {
+                break;
+            }
+
+            Path claim = spool.claim(file);
+            if (claim == null) {
+                continue;
+            }
+
+            List<SpanData> spans = spool.read(claim);
+            if (spans != null) {
+                claimed.add(claim);
+                combined.addAll(spans);
+            }
+        }
+
+        if (combined.isEmpty()) {
+            return 0;
+        }
+
+        CompletableResultCode result = exporter.export(combined);
+        result.whenComplete(() -> {
+            if (result.isSuccess()) {
+                claimed.forEach(spool::delete);
+                log.debug("Exported {} spans from {} spooled batches", combined.size(), claimed.size());
+            } else {
+                log.debug("Export of {} spooled spans failed; will retry later", combined.size());
+                claimed.forEach(spool::release);
+            }
+        });
+
+        if (!result.join(exportTimeoutMillis, TimeUnit.MILLISECONDS).isDone()) {
+            log.warn("Export of {} spooled spans is taking over {}ms; leaving them claimed until it finishes",
+                    combined.size(), exportTimeoutMillis);
+            return 0;
+        }
+        return result.isSuccess() ? combined.size() : 0;
+    }
+
+    /**
+     * Stop the background thread (letting an export in progress finish, within the export timeout), drain whatever is
+     * left once more, and shut down the exporter.
+     */
+    @Override
+    public void close() {
+        Thread drainThread;
+        synchronized (this) {
+            running = false;
+            drainThread = thread;
+        }
+
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        if (drainThread != null) {
+            try {
+                drainThread.join(exportTimeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        while (drainOnce() > 0) {
+            // flush the backlog
+        }
+        exporter.shutdown().join(exportTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+/**
+ * {@link SpanExporter} that only writes each batch to a {@link SpanSpool} shared by the tools running on a host. A
+ * single {@link SpoolDrainer} then exports the spans of many tools together, so parallel tool fan-out doesn't turn
+ * into many small collector requests, and each tool only pays for a local file write.
+ */
+public final class SpoolingSpanExporter
+        implements SpanExporter {
+    private final SpanSpool spool;
+
+    /**
+     * Write batches to the given spool directory.
+     *
+     * @param spoolDirectory The directory shared with the {@link SpoolDrainer}
+     * @param maxSpoolBytes The maximum total size of the spooled batches, evicting the oldest first
+     */
+    public SpoolingSpanExporter(Path spoolDirectory, long maxSpoolBytes) {
+        this.spool = new SpanSpool(spoolDirectory, maxSpoolBytes);
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+        return spool.write(spans) ? CompletableResultCode.ofSuccess() : CompletableResultCode.ofFailure();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+        return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+        return CompletableResultCode.ofSuccess();
+    }
+}
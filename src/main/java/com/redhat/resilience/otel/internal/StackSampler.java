@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Lightweight sampling profiler for a CLI execution. At a fixed interval it takes the stack traces of all runnable
+ * threads (including daemon threads, such as the fork-join common pool and executor workers) except its own, and
+ * counts them as folded stacks (root frame first, separated by ';'). Threads that are blocked, waiting or sleeping
+ * aren't counted, so idle pool and housekeeping threads don't crowd out where the CPU time goes. Threads waiting in
+ * native code (such as the Reference Handler, or a read from stdin) still report themselves as runnable, so where the
+ * JVM measures thread CPU time, a thread is only counted if it used some since the previous sample. When stopped, the
+ * full profile can be written to a file in the folded format used by flame graph tools.
+ * <p>
+ * The hottest stacks are also attached to the root span as a 'cli.profile' event. To keep that attribute small
+ * enough for collectors, the summary only holds the leaf-most frames of each stack, with package names dropped, and
+ * stops before it exceeds {@link #SUMMARY_MAX_LENGTH} characters.
+ * <p>
+ * This relies on periodic thread dumps, so it works on the Java 8 baseline. Each sample briefly pauses the sampled
+ * threads, so keep the interval in the tens of milliseconds.
+ */
+@Slf4j
+public final class StackSampler {
+    private static final String PROFILE_EVENT = "cli.profile";
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final int MAX_DISTINCT_STACKS = 10000;
+
+    private static final int SUMMARY_STACKS = 10;
+
+    private static final int SUMMARY_DEPTH = 8;
+
+    private static final int SUMMARY_MAX_LENGTH = 4096;
+
+    private static final String OVERFLOW_STACK = "[other]";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isThreadCpuTimeSupported()
+            && THREADS.isThreadCpuTimeEnabled();
+
+    private final long intervalMillis;
+
+    private final Path foldedOutput;
+
+    private final Map<String, Integer> stacks = new HashMap<>();
+
+    private final ScheduledExecutorService sampler;
+
+    private final Map<Long, Long> cpuTimes = new HashMap<>();
+
+    private int samples = 0;
+
+    /**
+     * Start sampling.
+     *
+     * @param interval The time between samples
+     * @param foldedOutput If not null, the file the full folded-stack profile is written to when stopped
+     */
+    public StackSampler(Duration interval, Path foldedOutput) {
+        this.intervalMillis = Math.max(1, interval.toMillis());
+        this.foldedOutput = foldedOutput;
+
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "otel-stack-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sample() {
+        long self = Thread.currentThread().getId();
+        for (ThreadInfo thread : THREADS.dumpAllThreads(false, false)) {
+            if (thread == null || thread.getThreadId() == self || thread.getThreadState() != Thread.State.RUNNABLE) {
+                continue;
+            }
+            StackTraceElement[] trace = thread.getStackTrace();
+            if (trace.length == 0 || !usedCpu(thread.getThreadId())) {
+                continue;
+            }
+
+            String folded = fold(trace);
+            synchronized (this) {
+                if (stacks.size() >= MAX_DISTINCT_STACKS && !stacks.containsKey(folded)) {
+                    folded = OVERFLOW_STACK;
+                }
+                stacks.merge(folded, 1, Integer::sum);
+            }
+        }
+
+        synchronized (this) {
+            samples++;
+        }
+    }
+
+    /**
+     * Whether the thread used CPU time since it was last sampled (or, the first time, at all). Only called from the
+     * sampler thread.
+     */
+    private boolean usedCpu(long threadId) {
+        if (!CPU_TIME_SUPPORTED) {
+            return true;
+        }
+
+        long cpuTime = THREADS.getThreadCpuTime(threadId);
+        if (cpuTime < 0) {
+            return true;
+        }
+        Long previous = cpuTimes.put(threadId, cpuTime);
+        return previous == null ? cpuTime > 0 : cpuTime > previous;
+    }
+
+    private static String fold(StackTraceElement[] trace) {
+        StringBuilder sb = new StringBuilder();
+        int depth = Math.min(trace.length, MAX_DEPTH);
+        for (int i = depth - 1; i >= 0; i--) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(trace[i].getClassName()).append('.').append(trace[i].getMethodName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Collapse a folded stack to its leaf-most {@link #SUMMARY_DEPTH} frames, without package names.
+     */
+    private static String summarize(String folded) {
+        String[] frames = folded.split(";");
+        int from = Math.max(0, frames.length - SUMMARY_DEPTH);
+        StringBuilder sb = new StringBuilder(from > 0 ? "..." : "");
+        for (int i = from; i < frames.length; i++) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            String frame = frames[i];
+            int method = frame.lastIndexOf('.');
+            int pkg = method > 0 ? frame.lastIndexOf('.', method - 1) : -1;
+            sb.append(frame, pkg + 1, frame.length());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stop sampling, attach a summary of the hottest stacks to the span, and write the full profile if requested.
+     *
+     * @param span The root span of the CLI execution
+     */
+    public void stop(Span span) {
+        sampler.shutdownNow();
+        try {
+            sampler.awaitTermination(intervalMillis * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Map.Entry<String, Integer>> sorted;
+        int totalSamples;
+        synchronized (this) {
+            sorted = new ArrayList<>(stacks.entrySet());
+            totalSamples = samples;
+        }
+        sorted.sort(Map.Entry.<String, Integer> comparingByValue().reversed());
+
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : sorted.subList(0, Math.min(SUMMARY_STACKS, sorted.size()))) {
+            String line = summarize(entry.getKey()) + ' ' + entry.getValue() + '\n';
+            if (summary.length() + line.length() > SUMMARY_MAX_LENGTH) {
+                break;
+            }
+            summary.append(line);
+        }
+
+        span.addEvent(
+                PROFILE_EVENT,
+                Attributes.builder()
+                        .put("profile.samples", totalSamples)
+                        .put("profile.interval_ms", intervalMillis)
+                        .put("profile.stacks", sorted.size())
+                        .put("profile.folded", summary.toString())
+                        .build());
+
+        if (foldedOutput != null) {
+            try (Writer writer = Files.newBufferedWriter(foldedOutput, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Integer> entry : sorted) {
+                    writer.write(entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } catch (IOException e) {
+                log.warn("Failed to write folded stack profile to {}", foldedOutput, e);
+            }
+        }
+
+        log.debug("Profiled {} samples into {} distinct stacks", totalSamples, sorted.size());
+    }
+}
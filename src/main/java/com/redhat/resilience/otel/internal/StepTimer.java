@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Low-overhead recorder for nested CLI steps. Instead of creating a span per step, this records start / end nanos,
+ * a name index and the enclosing step into preallocated primitive arrays. Spans are only created when
+ * {@link #materialize(Tracer, Span)} is called, and only for steps that took at least the configured threshold. Steps
+ * below the threshold are skipped, and their children are attached to the nearest recorded ancestor instead.
+ * <p>
+ * Nesting is tracked per thread: a step nests in the innermost step that is still open on the thread that starts it,
+ * so steps from worker threads don't end up under whatever step the main thread has open. Steps may be closed out of
+ * order, or from another thread; a new step then nests in the innermost enclosing step that hasn't ended. Once the
+ * arrays are full, further steps are counted and dropped.
+ */
+@Slf4j
+public final class StepTimer {
+    private static final int NO_PARENT = -1;
+
+    private static final long NOT_ENDED = -1;
+
+    private final long thresholdNanos;
+
+    private final long epochOffsetNanos;
+
+    private final long[] starts;
+
+    private final long[] ends;
+
+    private final int[] nameIndexes;
+
+    private final int[] parents;
+
+    private final Map<String, Integer> nameLookup = new HashMap<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    private int size = 0;
+
+    /**
+     * The innermost step opened by each thread, which may have ended since.
+     */
+    private final ThreadLocal<int[]> open = ThreadLocal.withInitial(() -> new int[] { NO_PARENT });
+
+    private int dropped = 0;
+
+    /**
+     * Create a recorder with room for the given number of steps.
+     *
+     * @param capacity The maximum number of steps recorded
+     * @param thresholdNanos Steps shorter than this are not turned into spans
+     */
+    public StepTimer(int capacity, long thresholdNanos) {
+        this.thresholdNanos = thresholdNanos;
+        this.epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        this.starts = new long[capacity];
+        this.ends = new long[capacity];
+        this.nameIndexes = new int[capacity];
+        this.parents = new int[capacity];
+    }
+
+    /**
+     * Record the start of a step, nested in the innermost step still open on this thread (if any).
+     *
+     * @param name The step name
+     * @return The step index to pass to {@link #end(int)}, or a negative value if the step was dropped
+     */
+    public synchronized int start(String name) {
+        if (size == starts.length) {
+            dropped++;
+            return NO_PARENT;
+        }
+
+        Integer nameIndex = nameLookup.get(name);
+        if (nameIndex == null) {
+            nameIndex = names.size();
+            names.add(name);
+            nameLookup.put(name, nameIndex);
+        }
+
+        int[] threadOpen = open.get();
+        int parent = threadOpen[0];
+        while (parent != NO_PARENT && ends[parent] != NOT_ENDED) {
+            parent = parents[parent];
+        }
+
+        int index = size++;
+        nameIndexes[index] = nameIndex;
+        parents[index] = parent;
+        ends[index] = NOT_ENDED;
+        threadOpen[0] = index;
+        starts[index] = System.nanoTime();
+        return index;
+    }
+
+    /**
+     * Record the end of a step, and make its enclosing step the current one again on this thread, if it was the
+     * innermost one.
+     *
+     * @param index The value returned from {@link #start(String)}
+     */
+    public synchronized void end(int index) {
+        long now = System.nanoTime();
+        if (index < 0) {
+            return;
+        }
+
+        ends[index] = now;
+        int[] threadOpen = open.get();
+        if (threadOpen[0] == index) {
+            threadOpen[0] = parents[index];
+        }
+    }
+
+    /**
+     * Create and end spans for all recorded steps at or above the threshold, using their recorded timestamps. Steps
+     * still open are ended now.
+     *
+     * @param tracer The tracer used to create spans
+     * @param root The span to parent top-level steps
+     */
+    public synchronized void materialize(Tracer tracer, Span root) {
+        long now = System.nanoTime();
+        Span[] spans = new Span[size];
+        int created = 0;
+
+        for (int i = 0; i < size; i++) {
+            Span parent = parents[i] == NO_PARENT ? root : spans[parents[i]];
+            long end = ends[i] == NOT_ENDED ? now : ends[i];
+
+            if (end - starts[i] < thresholdNanos) {
+                spans[i] = parent;
+                continue;
+            }
+
+            spans[i] = tracer.spanBuilder(names.get(nameIndexes[i]))
+                    .setParent(Context.root().with(parent))
+                    .setStartTimestamp(epochOffsetNanos + starts[i], TimeUnit.NANOSECONDS)
+                    .startSpan();
+            spans[i].end(epochOffsetNanos + end, TimeUnit.NANOSECONDS);
+            created++;
+        }
+
+        log.debug("Recorded {} steps as {} spans ({} dropped)", size, created, dropped);
+        if (dropped > 0) {
+            log.warn("Step timer capacity of {} was exceeded; {} steps were not recorded", starts.length, dropped);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import com.redhat.resilience.otel.TraceContextSource;
+
+import io.opentelemetry.api.trace.SpanContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The compiled lookup plan for the registered {@link TraceContextSource} implementations. Sources are discovered and
+ * sorted once, and their environment variable names are copied into flat arrays, so each lookup is a single pass over
+ * the plan with no service loading, sorting, or list allocation. Sources whose variables are all unset are skipped
+ * after a map lookup per variable.
+ */
+@Slf4j
+public final class TraceContextLookup {
+    private static final class DefaultHolder {
+        private static final TraceContextLookup INSTANCE = load(TraceContextLookup.class.getClassLoader());
+    }
+
+    private final TraceContextSource[] sources;
+
+    private final String[][] envars;
+
+    private TraceContextLookup(List<TraceContextSource> sources) {
+        List<TraceContextSource> sorted = new ArrayList<>(sources);
+        sorted.sort(Comparator.comparingInt(TraceContextSource::getOrder).thenComparing(TraceContextSource::getName));
+
+        this.sources = sorted.toArray(new TraceContextSource[0]);
+        this.envars = new String[this.sources.length][];
+        for (int i = 0; i < this.sources.length; i++) {
+            envars[i] = this.sources[i].getEnvars().toArray(new String[0]);
+        }
+    }
+
+    /**
+     * @return The plan for the sources registered with the classloader of this library, compiled on first use
+     */
+    public static TraceContextLookup getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Compile a plan for the sources registered with the given classloader.
+     *
+     * @param classLoader The classloader to search for META-INF/services registrations
+     * @return The compiled plan
+     */
+    public static TraceContextLookup load(ClassLoader classLoader) {
+        List<TraceContextSource> sources = new ArrayList<>();
+        ServiceLoader.load(TraceContextSource.class, classLoader).forEach(sources::add);
+        TraceContextLookup lookup = new TraceContextLookup(sources);
+        log.debug("Trace context sources: {}", lookup.getSourceNames());
+        return lookup;
+    }
+
+    /**
+     * Compile a plan for the given sources, without service discovery.
+     *
+     * @param sources The sources to include
+     * @return The compiled plan
+     */
+    public static TraceContextLookup of(List<TraceContextSource> sources) {
+        return new TraceContextLookup(sources);
+    }
+
+    /**
+     * @return The source names, in lookup order
+     */
+    public List<String> getSourceNames() {
+        List<String> names = new ArrayList<>(sources.length);
+        for (TraceContextSource source : sources) {
+            names.add(source.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Find the trace context in the given environment, trying each source with at least one variable set in order.
+     *
+     * @param env The environment variables, usually {@link System#getenv()}
+     * @return The first valid {@link SpanContext}, or else {@link SpanContext#getInvalid()}
+     */
+    public SpanContext lookup(Map<String, String> env) {
+        for (int i = 0; i < sources.length; i++) {
+            String[] names = envars[i];
+            if (!anySet(env, names)) {
+                continue;
+            }
+
+            SpanContext spanContext = sources[i].decode(idx -> EnvarExtractingPropagator.parseURL(env.get(names[idx])));
+            if (spanContext != null && spanContext.isValid()) {
+                log.debug("Trace context from {}: {}", sources[i].getName(), spanContext);
+                return spanContext;
+            }
+        }
+
+        return SpanContext.getInvalid();
+    }
+
+    private static boolean anySet(Map<String, String> env, String[] names) {
+        for (String name : names) {
+            if (env.get(name) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
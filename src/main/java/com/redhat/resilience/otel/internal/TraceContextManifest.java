@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.internal;
+
+import static com.redhat.resilience.otel.internal.OTelContextUtil.extractContextFromTraceParent;
+import static com.redhat.resilience.otel.internal.OTelContextUtil.withTraceState;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import io.opentelemetry.api.trace.SpanContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams a manifest of upstream trace contexts, for tools that handle work items from many pipelines in one run. Each
+ * line holds a traceparent, optionally followed by whitespace and a tracestate; blank lines and lines starting with '#'
+ * are skipped, as are lines whose traceparent can't be parsed.
+ * <p>
+ * The calling thread reads the file in chunks, which worker threads parse (with {@link OTelContextUtil}) and hand to
+ * the consumer. The queue between them is bounded, so memory use doesn't depend on the size of the manifest.
+ */
+@Slf4j
+public final class TraceContextManifest {
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final List<String> END = Collections.emptyList();
+
+    private TraceContextManifest() {
+    }
+
+    /**
+     * Parse one manifest line.
+     *
+     * @param line The line
+     * @return The {@link SpanContext}, or {@link SpanContext#getInvalid()} for comments and unparseable lines
+     */
+    public static SpanContext parse(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && Character.isWhitespace(line.charAt(start))) {
+            start++;
+        }
+        if (start == end || line.charAt(start) == '#') {
+            return SpanContext.getInvalid();
+        }
+
+        int split = start;
+        while (split < end && !Character.isWhitespace(line.charAt(split))) {
+            split++;
+        }
+
+        SpanContext spanContext = extractContextFromTraceParent(start == 0 && split == end ? line
+                : line.substring(start, split));
+        if (!spanContext.isValid() || split == end) {
+            return spanContext;
+        }
+
+        return withTraceState(spanContext, line.substring(split).trim());
+    }
+
+    /**
+     * Pass each valid trace context in the manifest to the consumer, from the given number of threads. The consumer is
+     * called concurrently, in no particular order. If it throws, the remaining items are still processed, and the
+     * first failure is rethrown at the end. If reading the manifest fails (or the calling thread is interrupted), the
+     * workers are stopped before the exception is thrown, dropping the items that haven't been handled yet.
+     *
+     * @param manifest The manifest file
+     * @param parallelism The number of worker threads
+     * @param consumer Handles each trace context; MUST be thread-safe
+     * @return The number of valid trace contexts passed to the consumer
+     * @throws IOException if the manifest can't be read
+     */
+    public static long forEach(Path manifest, int parallelism, Consumer<SpanContext> consumer) throws IOException {
+        int workerCount = Math.max(1, parallelism);
+        BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(workerCount * 2);
+        LongAdder count = new LongAdder();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(() -> work(queue, consumer, count, failure), "otel-manifest-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        try {
+            read(manifest, queue);
+            for (int i = 0; i < workerCount; i++) {
+                put(queue, END);
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while processing " + manifest, e);
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            stop(workers);
+            throw e;
+        }
+
+        Throwable failed = failure.get();
+        if (failed instanceof Error) {
+            throw (Error) failed;
+        } else if (failed != null) {
+            throw (RuntimeException) failed;
+        }
+
+        log.debug("Processed {} trace contexts from {}", count.sum(), manifest);
+        return count.sum();
+    }
+
+    private static void read(Path manifest, BlockingQueue<List<String>> queue) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == CHUNK_SIZE) {
+                    put(queue, chunk);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                put(queue, chunk);
+            }
+        }
+    }
+
+    /**
+     * Stop the workers after a failure, without queueing anything (the queue may be full, or the caller interrupted).
+     * Items they're already handling are finished; the rest are dropped.
+     */
+    private static void stop(Thread[] workers) {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void put(BlockingQueue<List<String>> queue, List<String> chunk) {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading trace context manifest", e);
+        }
+    }
+
+    private static void work(
+            BlockingQueue<List<String>> queue,
+            Consumer<SpanContext> consumer,
+            LongAdder count,
+            AtomicReference<Throwable> failure) {
+        while (true) {
+            List<String> chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chunk == END) {
+                return;
+            }
+
+            for (String line : chunk) {
+                SpanContext spanContext = parse(line);
+                if (!spanContext.isValid()) {
+                    continue;
+                }
+
+                count.increment();
+                try {
+                    consumer.accept(spanContext);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redhat.resilience.otel.internal.EnvarBaggage;
+import com.redhat.resilience.otel.internal.EnvarExtractingPropagator;
+import com.redhat.resilience.otel.internal.TraceContextLookup;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapPropagator;
+import io.opentelemetry.sdk.autoconfigure.spi.ConfigurablePropagatorProvider;
+import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
+
+public class EnvarExtractingPropagatorTest {
+    private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+
+    private static final String SPAN_ID = "b9c7c989f97918e1";
+
+    private static SpanContext extract(EnvarExtractingPropagator propagator) {
+        return Span.fromContext(propagator.extract(Context.root(), null, null)).getSpanContext();
+    }
+
+    @Test
+    public void snapshotIgnoresLaterEnvironmentChanges() throws Exception {
+        // Nothing is resolved until the first extraction
+        EnvarExtractingPropagator snapshot = new EnvironmentVariables()
+                .remove("TRACEPARENT")
+                .execute(EnvarExtractingPropagator::snapshot);
+
+        SpanContext spanContext = new EnvironmentVariables("TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .and("TRACESTATE", "rojo=00f067aa0ba902b7")
+                .execute(() -> extract(snapshot));
+        assertEquals(TRACE_ID, spanContext.getTraceId(), "Wrong trace ID");
+        assertEquals(SPAN_ID, spanContext.getSpanId(), "Wrong span ID");
+        assertEquals("00f067aa0ba902b7", spanContext.getTraceState().get("rojo"), "Wrong trace state");
+
+        new EnvironmentVariables("TRACEPARENT", "00-11111111111111111111111111111111-2222222222222222-01")
+                .execute(() -> assertEquals(TRACE_ID, extract(snapshot).getTraceId(), "Snapshot was re-read"));
+    }
+
+    @Test
+    public void snapshotWithoutEnvironment() throws Exception {
+        EnvarExtractingPropagator snapshot = EnvarExtractingPropagator.snapshot();
+        SpanContext spanContext = new EnvironmentVariables()
+                .remove("TRACEPARENT")
+                .remove("TRACE_ID")
+                .remove("SPAN_ID")
+                .execute(() -> extract(snapshot));
+
+        assertFalse(spanContext.isValid(), "Expected no trace context");
+    }
+
+    @Test
+    public void snapshotWithUnreadableFile(@TempDir Path tempDir) throws Exception {
+        EnvarExtractingPropagator snapshot = EnvarExtractingPropagator.snapshot();
+        SpanContext spanContext = new EnvironmentVariables("TRACEPARENT", tempDir.resolve("missing").toUri().toString())
+                .execute(() -> extract(snapshot));
+
+        assertFalse(spanContext.isValid(), "Expected no trace context");
+    }
+
+    @Test
+    public void watchedFileUpdates(@TempDir Path tempDir) throws Exception {
+        Path file = tempDir.resolve("traceparent");
+        Files.write(file, Arrays.asList("00-" + TRACE_ID + "-" + SPAN_ID + "-01", "rojo=00f067aa0ba902b7"));
+
+        try (TraceContextFileWatcher watcher = TraceContextFileWatcher.start(file, Duration.ofMillis(50))) {
+            EnvarExtractingPropagator propagator = EnvarExtractingPropagator.watching(watcher);
+
+            SpanContext spanContext = extract(propagator);
+            assertEquals(TRACE_ID, spanContext.getTraceId(), "Wrong trace ID");
+            assertEquals("00f067aa0ba902b7", spanContext.getTraceState().get("rojo"), "Wrong trace state");
+
+            String newTraceId = "11111111111111111111111111111111";
+            Files.write(file, Collections.singletonList("00-" + newTraceId + "-2222222222222222-01"));
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!newTraceId.equals(extract(propagator).getTraceId()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+
+            assertEquals(newTraceId, extract(propagator).getTraceId(), "Change was not picked up");
+            assertEquals(0, extract(propagator).getTraceState().size(), "Stale trace state");
+
+            Files.write(file, new byte[0]);
+            watcher.reread();
+            assertEquals(newTraceId, extract(propagator).getTraceId(), "Truncated file replaced the context");
+
+            Files.delete(file);
+            watcher.reread();
+            assertEquals(newTraceId, extract(propagator).getTraceId(), "Last known context was not retained");
+        }
+    }
+
+    @Test
+    public void registeredSourcesAreOrdered() {
+        List<String> names = TraceContextLookup.getDefault().getSourceNames();
+        assertEquals(Arrays.asList("jenkins", "test-ci"), names, "Wrong lookup plan");
+    }
+
+    @Test
+    public void registeredSourceIsUsed() throws Exception {
+        SpanContext spanContext = new EnvironmentVariables()
+                .remove("TRACEPARENT")
+                .remove("TRACE_ID")
+                .remove("SPAN_ID")
+                .set("TEST_CI_TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .set("TEST_CI_TRACESTATE", "rojo=00f067aa0ba902b7")
+                .execute(() -> extract(EnvarExtractingPropagator.getInstance()));
+
+        assertEquals(TRACE_ID, spanContext.getTraceId(), "Wrong trace ID");
+        assertEquals(SPAN_ID, spanContext.getSpanId(), "Wrong span ID");
+        assertEquals("00f067aa0ba902b7", spanContext.getTraceState().get("rojo"), "Wrong trace state");
+    }
+
+    @Test
+    public void earlierSourceWins() throws Exception {
+        SpanContext spanContext = new EnvironmentVariables()
+                .set("TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .set("TEST_CI_TRACEPARENT", "00-11111111111111111111111111111111-2222222222222222-01")
+                .execute(() -> extract(EnvarExtractingPropagator.getInstance()));
+
+        assertEquals(TRACE_ID, spanContext.getTraceId(), "Jenkins variables were not preferred");
+    }
+
+    @Test
+    public void invalidSourceFallsThrough() throws Exception {
+        SpanContext spanContext = new EnvironmentVariables()
+                .set("TRACEPARENT", "garbage")
+                .set("TEST_CI_TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .execute(() -> extract(EnvarExtractingPropagator.getInstance()));
+
+        assertEquals(TRACE_ID, spanContext.getTraceId(), "Next source was not tried");
+    }
+
+    @Test
+    public void baggageIsExtractedAndInjected() throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        new EnvironmentVariables("TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .and("BAGGAGE", "user=alice,build=42;meta")
+                .execute(() -> {
+                    EnvarExtractingPropagator propagator = EnvarExtractingPropagator.getInstance();
+                    Context context = propagator.extract(Context.root(), null, null);
+                    assertEquals("alice", Baggage.fromContext(context).getEntryValue("user"), "Baggage was not read");
+                    assertEquals("42", Baggage.fromContext(context).getEntryValue("build"), "Baggage was not read");
+
+                    propagator.inject(context, headers, Map::put);
+                });
+
+        assertEquals(Arrays.asList("traceparent", "tracestate", "baggage"),
+                EnvarExtractingPropagator.getInstance().fields().stream().collect(Collectors.toList()),
+                "Wrong fields");
+        assertEquals("00-" + TRACE_ID + "-" + SPAN_ID + "-01", headers.get("traceparent"), "Wrong traceparent");
+        assertEquals(2, headers.get("baggage").split(",").length, "Wrong baggage: " + headers.get("baggage"));
+    }
+
+    @Test
+    public void baggageFromFile(@TempDir Path tempDir) throws Exception {
+        Path file = tempDir.resolve("baggage");
+        Files.write(file, Collections.singletonList("user=alice"));
+
+        Baggage baggage = new EnvironmentVariables("BAGGAGE", file.toUri().toString())
+                .execute(EnvarBaggage::fromEnvars);
+        assertEquals("alice", baggage.getEntryValue("user"), "Baggage file was not read");
+    }
+
+    @Test
+    public void baggageIsCached() throws Exception {
+        EnvironmentVariables env = new EnvironmentVariables("BAGGAGE", "user=alice");
+        Baggage first = env.execute(EnvarBaggage::fromEnvars);
+        Baggage second = env.execute(EnvarBaggage::fromEnvars);
+        assertSame(first, second, "Baggage was parsed again");
+
+        Baggage changed = new EnvironmentVariables("BAGGAGE", "user=bob").execute(EnvarBaggage::fromEnvars);
+        assertEquals("bob", changed.getEntryValue("user"), "Changed baggage was not parsed");
+    }
+
+    @Test
+    public void baggageIsLimited() {
+        String members = IntStream.range(0, 100).mapToObj(i -> "key" + i + "=value").collect(Collectors.joining(","));
+        assertEquals(64, EnvarBaggage.parse(members).size(), "Member limit was not applied");
+
+        char[] big = new char[5000];
+        Arrays.fill(big, 'x');
+        String value = new String(big);
+        Baggage baggage = EnvarBaggage.parse("a=" + value + ",b=" + value + ",c=1");
+        assertEquals(1, baggage.size(), "Length limit was not applied");
+        assertEquals(value, baggage.getEntryValue("a"), "Wrong member kept");
+
+        // 6000 characters, but 9000 bytes in UTF-8
+        char[] wide = new char[3000];
+        Arrays.fill(wide, '\u00e9');
+        char[] narrow = new char[3000];
+        Arrays.fill(narrow, 'y');
+        Baggage utf8 = EnvarBaggage.parse("a=1,x=" + new String(wide) + ",b=" + new String(narrow));
+        assertEquals("1", utf8.getEntryValue("a"), "Wrong member kept");
+        assertNull(utf8.getEntryValue("b"), "Length limit was not applied in bytes");
+    }
+
+    @Test
+    public void failedBaggageFetchIsNotCached(@TempDir Path tempDir) throws Exception {
+        Path file = tempDir.resolve("baggage");
+        EnvironmentVariables env = new EnvironmentVariables("BAGGAGE", file.toUri().toString());
+
+        assertTrue(env.execute(EnvarBaggage::fromEnvars).isEmpty(), "Missing baggage file was not ignored");
+
+        Files.write(file, Collections.singletonList("user=alice"));
+        assertEquals("alice", env.execute(EnvarBaggage::fromEnvars).getEntryValue("user"), "Failed read was cached");
+    }
+
+    @Test
+    public void envarStaticProvider() throws Exception {
+        String traceParent = "00-" + TRACE_ID + "-" + SPAN_ID + "-01";
+        TextMapPropagator found = null;
+        for (ConfigurablePropagatorProvider provider : ServiceLoader.load(ConfigurablePropagatorProvider.class)) {
+            if ("envar-static".equals(provider.getName())) {
+                found = provider.getPropagator(null);
+            }
+        }
+        assertNotNull(found, "envar-static is not registered");
+        TextMapPropagator propagator = found;
+
+        Map<String, String> headers = new HashMap<>();
+        new EnvironmentVariables("TRACEPARENT", traceParent)
+                .execute(() -> propagator.inject(propagator.extract(Context.root(), null, null), headers, Map::put));
+        assertEquals(traceParent, headers.get("traceparent"), "Wrong injected context");
+
+        int extractions = 1_000_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < extractions; i++) {
+            propagator.extract(Context.root(), null, null);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsedMillis < 5000, "Extraction is too slow: " + extractions + " took " + elapsedMillis + "ms");
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Guard the shipped native-image configuration against class renames and missing service files, since nothing else
+ * exercises it outside of a native build.
+ */
+public class NativeImageConfigTest {
+    private static final String CONFIG_DIR =
+            "META-INF/native-image/com.redhat.resilience.otel/opentelemetry-ext-cli-java/";
+
+    private static final Pattern NAME = Pattern.compile("\"name\"\\s*:\\s*\"([^\"<]+)\"");
+
+    private static final Pattern RESOURCE = Pattern.compile("\\\\\\\\Q(.+?)\\\\\\\\E");
+
+    @Test
+    public void reflectConfigClassesExist() throws IOException {
+        List<String> classes = matches(NAME, read("reflect-config.json"));
+        assertFalse(classes.isEmpty(), "No classes registered for reflection");
+
+        for (String className : classes) {
+            assertDoesNotThrow(() -> Class.forName(className), "Missing class: " + className);
+        }
+    }
+
+    @Test
+    public void resourceConfigResourcesExist() throws IOException {
+        List<String> resources = matches(RESOURCE, read("resource-config.json"));
+        assertFalse(resources.isEmpty(), "No resources registered");
+
+        for (String resource : resources) {
+            assertNotNull(getClass().getClassLoader().getResource(resource), "Missing resource: " + resource);
+        }
+    }
+
+    private String read(String file) throws IOException {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(CONFIG_DIR + file)) {
+            assertNotNull(in, "Missing native-image config: " + file);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                return reader.lines().collect(Collectors.joining("\n"));
+            }
+        }
+    }
+
+    private List<String> matches(Pattern pattern, String content) {
+        List<String> result = new ArrayList<>();
+        Matcher matcher = pattern.matcher(content);
+        while (matcher.find()) {
+            result.add(matcher.group(1));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import com.redhat.resilience.otel.fixture.FakeOtlpReceiver;
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+import com.redhat.resilience.otel.internal.EnvarExtractingPropagator;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import lombok.extern.slf4j.Slf4j;
+import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
+
+/**
+ * Soak / load test for the helper lifecycle, run against an in-process OTLP/HTTP receiver with injected latency and
+ * failures. It reports throughput, exit latency, heap growth and thread counts, and fails when they pass the
+ * configured thresholds. This is too slow for every build, so it only runs with {@code mvn test -Dsoak=true}; the
+ * workload and thresholds can be tuned with the 'soak.*' system properties below.
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "soak", matches = "true")
+public class OTelCLIHelperSoakTest {
+    private static final int CYCLES = Integer.getInteger("soak.cycles", 500);
+
+    private static final int SPANS_PER_CYCLE = Integer.getInteger("soak.spans", 100);
+
+    private static final int WARMUP_CYCLES = Integer.getInteger("soak.warmup", 50);
+
+    private static final long LATENCY_MILLIS = Long.getLong("soak.latencyMillis", 5);
+
+    private static final int FAIL_EVERY = Integer.getInteger("soak.failEvery", 7);
+
+    private static final long MIN_SPANS_PER_SECOND = Long.getLong("soak.minSpansPerSecond", 1000);
+
+    private static final long MAX_P99_EXIT_MILLIS = Long.getLong("soak.maxP99ExitMillis", 1000);
+
+    private static final long MAX_HEAP_GROWTH_BYTES = Long.getLong("soak.maxHeapGrowthMb", 32) * 1024 * 1024;
+
+    private static final int MAX_THREAD_GROWTH = Integer.getInteger("soak.maxThreadGrowth", 2);
+
+    private static final int START_STOP_CYCLES = Integer.getInteger("soak.startStopCycles", 300);
+
+    private static final int EXTRACT_CALLS = Integer.getInteger("soak.extractCalls", 200000);
+
+    private static final long MIN_EXTRACTS_PER_SECOND = Long.getLong("soak.minExtractsPerSecond", 20000);
+
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+    }
+
+    @Test
+    public void lifecycleSoak() throws Exception {
+        try (FakeOtlpReceiver receiver = new FakeOtlpReceiver(LATENCY_MILLIS, FAIL_EVERY)) {
+            for (int i = 0; i < WARMUP_CYCLES; i++) {
+                cycle(receiver.getEndpoint());
+            }
+
+            long baselineHeap = settledHeap();
+            int baselineThreads = settledThreads(Integer.MAX_VALUE);
+
+            long[] exitNanos = new long[CYCLES];
+            long start = System.nanoTime();
+            for (int i = 0; i < CYCLES; i++) {
+                exitNanos[i] = cycle(receiver.getEndpoint());
+            }
+            long elapsed = System.nanoTime() - start;
+
+            long heapGrowth = settledHeap() - baselineHeap;
+            int threadGrowth = settledThreads(baselineThreads) - baselineThreads;
+
+            Arrays.sort(exitNanos);
+            long p50 = TimeUnit.NANOSECONDS.toMillis(exitNanos[CYCLES / 2]);
+            long p99 = TimeUnit.NANOSECONDS.toMillis(exitNanos[Math.min(CYCLES - 1, CYCLES * 99 / 100)]);
+            double spansPerSecond = (double) CYCLES * (SPANS_PER_CYCLE + 1) / elapsed * TimeUnit.SECONDS.toNanos(1);
+
+            log.info(
+                    "Lifecycle soak: {} cycles x {} spans, {} spans/s, exit p50 {} ms / p99 {} ms, "
+                            + "heap growth {} KB, thread growth {}, {} export requests ({} failed, {} bytes)",
+                    CYCLES,
+                    SPANS_PER_CYCLE,
+                    Math.round(spansPerSecond),
+                    p50,
+                    p99,
+                    heapGrowth / 1024,
+                    threadGrowth,
+                    receiver.getRequests(),
+                    receiver.getFailures(),
+                    receiver.getBytes());
+
+            assertTrue(receiver.getRequests() > 0, "Nothing was exported");
+            assertTrue(
+                    spansPerSecond >= MIN_SPANS_PER_SECOND,
+                    "Throughput " + Math.round(spansPerSecond) + " spans/s is under " + MIN_SPANS_PER_SECOND);
+            assertTrue(p99 <= MAX_P99_EXIT_MILLIS, "p99 exit latency " + p99 + " ms is over " + MAX_P99_EXIT_MILLIS);
+            assertTrue(heapGrowth <= MAX_HEAP_GROWTH_BYTES, "Heap grew by " + heapGrowth + " bytes");
+            assertTrue(threadGrowth <= MAX_THREAD_GROWTH, "Thread count grew by " + threadGrowth);
+        }
+    }
+
+    @Test
+    public void repeatedStartStop() throws Exception {
+        for (int i = 0; i < WARMUP_CYCLES; i++) {
+            startStop();
+        }
+        long baselineHeap = settledHeap();
+        int baselineThreads = settledThreads(Integer.MAX_VALUE);
+
+        for (int i = 0; i < START_STOP_CYCLES; i++) {
+            startStop();
+        }
+
+        long heapGrowth = settledHeap() - baselineHeap;
+        int threadGrowth = settledThreads(baselineThreads) - baselineThreads;
+        log.info(
+                "Start / stop: {} cycles, heap growth {} KB, thread growth {}",
+                START_STOP_CYCLES,
+                heapGrowth / 1024,
+                threadGrowth);
+
+        assertTrue(heapGrowth <= MAX_HEAP_GROWTH_BYTES, "Heap grew by " + heapGrowth + " bytes");
+        assertTrue(threadGrowth <= MAX_THREAD_GROWTH, "Thread count grew by " + threadGrowth);
+    }
+
+    /**
+     * Start and stop with an in-memory exporter, checking the root span scope is restored.
+     */
+    private static void startStop() {
+        TestSpanExporter.clear();
+        OTelCLIHelper.startOTel("soak-test", OTelCLIHelper.defaultSpanProcessor(new TestSpanExporter()));
+        assertTrue(Span.current().getSpanContext().isValid(), "Root span is not current");
+
+        OTelCLIHelper.stopOTel();
+        assertFalse(Span.current().getSpanContext().isValid(), "Root span scope was not closed");
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Incorrect span count!");
+    }
+
+    @Test
+    public void extractThroughput() throws Exception {
+        new EnvironmentVariables("TRACEPARENT", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                .and("TRACESTATE", "rojo=00f067aa0ba902b7,congo=t61rcWkgMzE")
+                .execute(() -> {
+                    EnvarExtractingPropagator propagator = EnvarExtractingPropagator.getInstance();
+                    for (int i = 0; i < EXTRACT_CALLS / 10; i++) {
+                        propagator.extract(Context.root(), null, null);
+                    }
+
+                    long start = System.nanoTime();
+                    for (int i = 0; i < EXTRACT_CALLS; i++) {
+                        Context context = propagator.extract(Context.root(), null, null);
+                        assertEquals(
+                                "0af7651916cd43dd8448eb211c80319c",
+                                Span.fromContext(context).getSpanContext().getTraceId());
+                    }
+                    long elapsed = System.nanoTime() - start;
+
+                    long perSecond = EXTRACT_CALLS * TimeUnit.SECONDS.toNanos(1) / elapsed;
+                    log.info("Extract throughput: {} extract() calls/s", perSecond);
+                    assertTrue(
+                            perSecond >= MIN_EXTRACTS_PER_SECOND,
+                            "extract() throughput " + perSecond + "/s is under " + MIN_EXTRACTS_PER_SECOND);
+                });
+    }
+
+    /**
+     * Run one start → spans → stop cycle, returning the time stopOTel took.
+     */
+    private static long cycle(String endpoint) {
+        OTelCLIHelper.startOTel(
+                "soak-test",
+                OTelCLIHelper.defaultSpanProcessor(OTelCLIHelper.httpSpanExporter(endpoint)));
+
+        Tracer tracer = GlobalOpenTelemetry.getTracer("soak-test");
+        for (int i = 0; i < SPANS_PER_CYCLE; i++) {
+            tracer.spanBuilder("work-" + (i % 10)).setAttribute("item", i).startSpan().end();
+        }
+
+        long start = System.nanoTime();
+        OTelCLIHelper.stopOTel();
+        return System.nanoTime() - start;
+    }
+
+    private static long settledHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Give worker threads from finished cycles a few seconds to exit, then return the live thread count.
+     */
+    private static int settledThreads(int target) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        while (threads > target && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        }
+        if (target == Integer.MAX_VALUE) {
+            Thread.sleep(1000);
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        }
+        return threads;
+    }
+}
@@ -17,13 +17,24 @@ package com.redhat.resilience.otel;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
@@ -31,9 +42,20 @@ import org.junit.jupiter.api.io.TempDir;
 
 import com.redhat.resilience.otel.fixture.TestSpanExporter;
 import com.redhat.resilience.otel.internal.EnvarExtractingPropagator;
+import com.redhat.resilience.otel.internal.OTelContextUtil;
 
 import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.trace.SpanLimits;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
 
 public class OTelCLiHelperTest {
     static {
@@ -43,7 +65,10 @@ public class OTelCLiHelperTest {
     @AfterEach
     public void otelTeardown() {
         OTelCLIHelper.stopOTel();
-        GlobalOpenTelemetry.resetForTest();
+        OTelCLIHelper.disableResourceUsage();
+        OTelCLIHelper.disableProfiling();
+        OTelCLIHelper.setRegisterGlobal(true);
+        OTelCLIHelper.setSpanLimits(null);
     }
 
     @Test
@@ -66,6 +91,269 @@ public class OTelCLiHelperTest {
         OTelCLIHelper.stopOTel();
     }
 
+    @Test
+    public void verifyExistingGlobalIsKept() {
+        withOwnGlobal(() -> {
+            OpenTelemetry existing = OpenTelemetry.propagating(ContextPropagators.noop());
+            GlobalOpenTelemetry.set(existing);
+
+            OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+            OTelCLIHelper.stopOTel();
+
+            assertSame(existing.getTracerProvider(), GlobalOpenTelemetry.getTracerProvider(), "Global was replaced");
+        });
+    }
+
+    @Test
+    public void verifyGlobalRegisteredOnce() {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        OpenTelemetry global = GlobalOpenTelemetry.get();
+        OTelCLIHelper.stopOTel();
+
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        assertSame(global, GlobalOpenTelemetry.get(), "Global was registered again");
+    }
+
+    @Test
+    public void verifyGlobalTracerAcrossExecutions() {
+        TestSpanExporter.clear();
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        Tracer tracer = GlobalOpenTelemetry.getTracer("cli-test");
+        OTelCLIHelper.stopOTel();
+
+        tracer.spanBuilder("between").startSpan().end();
+
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        tracer.spanBuilder("second").startSpan().end();
+        OTelCLIHelper.stopOTel();
+
+        List<String> names = TestSpanExporter.getSpans().stream().map(SpanData::getName).collect(Collectors.toList());
+        assertEquals(Arrays.asList("cli-execution", "second", "cli-execution"), names, "Wrong spans exported");
+    }
+
+    @Test
+    public void verifyStopFromAnotherThread() throws Exception {
+        TestSpanExporter.clear();
+        Context before = Context.current();
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        Thread stopper = new Thread(OTelCLIHelper::stopOTel);
+        stopper.start();
+        stopper.join();
+
+        assertFalse(OTelCLIHelper.otelEnabled(), "OpenTelemetry was not stopped");
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Root span was not exported");
+        assertTrue(Span.current().getSpanContext().isValid(), "Root span context was closed on the wrong thread");
+
+        // stopOTel() can't close the root scope from the stopper thread, so restore this thread's context here
+        before.makeCurrent();
+        assertFalse(Span.current().getSpanContext().isValid(), "Root span is still current");
+    }
+
+    @Test
+    public void verifyWithoutGlobalRegistration() {
+        withOwnGlobal(() -> {
+            OTelCLIHelper.setRegisterGlobal(false);
+            OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+            assertTrue(Span.current().getSpanContext().isValid(), "Root span is not current");
+            assertNotSame(GlobalOpenTelemetry.get(), OTelCLIHelper.getOpenTelemetry());
+        });
+    }
+
+    @Test
+    public void verifyRepeatedStartStop() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            startStop();
+        }
+        int baseline = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        for (int i = 0; i < 200; i++) {
+            startStop();
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        while (threads > baseline + 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        }
+        assertTrue(threads <= baseline + 2, "Thread count grew from " + baseline + " to " + threads);
+    }
+
+    private static void startStop() {
+        OTelCLIHelper.startOTel("cli-test", OTelCLIHelper.defaultSpanProcessor(new TestSpanExporter()));
+        assertTrue(Span.current().getSpanContext().isValid(), "Root span is not current");
+        OTelCLIHelper.stopOTel();
+        assertFalse(Span.current().getSpanContext().isValid(), "Root span scope was not closed");
+    }
+
+    /**
+     * Run a test that sets or freezes {@link GlobalOpenTelemetry} itself. The helper registers its forwarding instance
+     * once per JVM, so the global is cleared before and after, letting the other tests share the registration.
+     */
+    private static void withOwnGlobal(Runnable test) {
+        GlobalOpenTelemetry.resetForTest();
+        try {
+            test.run();
+        } finally {
+            OTelCLIHelper.stopOTel();
+            GlobalOpenTelemetry.resetForTest();
+        }
+    }
+
+    @Test
+    public void verifyAsyncStart() throws Exception {
+        TestSpanExporter.clear();
+        long before = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+        new EnvironmentVariables("TRACEPARENT", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                .execute(() -> {
+                    CompletableFuture<Span> root = OTelCLIHelper.startOTelAsync(
+                            "cli-test",
+                            SimpleSpanProcessor.create(new TestSpanExporter()));
+                    assertEquals("0af7651916cd43dd8448eb211c80319c", root.get().getSpanContext().getTraceId());
+                });
+
+        OTelCLIHelper.stopOTel();
+
+        List<SpanData> spanData = TestSpanExporter.getSpans();
+        assertEquals(1, spanData.size(), "Incorrect span count!");
+        assertEquals("b9c7c989f97918e1", spanData.get(0).getParentSpanId(), "Incorrect parent span ID");
+        assertTrue(spanData.get(0).getStartEpochNanos() >= before, "Root span started too early");
+    }
+
+    @Test
+    public void verifyAsyncWorkUnderRoot() throws Exception {
+        TestSpanExporter.clear();
+
+        new EnvironmentVariables("TRACEPARENT", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                .execute(() -> {
+                    OTelCLIHelper.startOTelAsync("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+                    Span root = OTelCLIHelper.awaitRoot();
+                    assertEquals(root.getSpanContext(), Span.current().getSpanContext(), "Root span is not current");
+
+                    OTelCLIHelper.step("work", () -> {
+                    });
+                });
+
+        OTelCLIHelper.stopOTel();
+
+        List<SpanData> spanData = TestSpanExporter.getSpans();
+        assertEquals(2, spanData.size(), "Incorrect span count!");
+        SpanData work = spanData.get(0);
+        SpanData root = spanData.get(1);
+        assertEquals("work", work.getName());
+        assertEquals(root.getSpanId(), work.getParentSpanId(), "Work span is not a child of the root span");
+        assertEquals("0af7651916cd43dd8448eb211c80319c", work.getTraceId(), "Work span is in another trace");
+    }
+
+    @Test
+    public void verifyAsyncStartWithoutWaiting() {
+        TestSpanExporter.clear();
+
+        OTelCLIHelper.startOTelAsync("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        OTelCLIHelper.stopOTel();
+
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Incorrect span count!");
+    }
+
+    @Test
+    public void verifyResourceUsage() throws Exception {
+        TestSpanExporter.clear();
+        OTelCLIHelper.enableResourceUsage(Duration.ofMillis(10));
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        Thread.sleep(100);
+        OTelCLIHelper.stopOTel();
+
+        List<SpanData> spanData = TestSpanExporter.getSpans();
+        assertEquals(1, spanData.size(), "Incorrect span count!");
+
+        SpanData root = spanData.get(0);
+        assertTrue(root.getAttributes().get(AttributeKey.longKey("jvm.thread.count")) > 0, "No thread count");
+        assertTrue(root.getAttributes().get(AttributeKey.longKey("jvm.gc.count")) >= 0, "No GC count");
+        assertTrue(root.getAttributes().get(AttributeKey.doubleKey("process.cpu.time")) >= 0, "No CPU time");
+        assertFalse(root.getEvents().isEmpty(), "No periodic samples");
+        assertEquals("process.usage", root.getEvents().get(0).getName());
+    }
+
+    @Test
+    public void verifyResourceUsageFitsEventLimit() throws Exception {
+        TestSpanExporter.clear();
+        OTelCLIHelper.setSpanLimits(SpanLimits.builder().setMaxNumberOfEvents(20).build());
+        OTelCLIHelper.enableResourceUsage(Duration.ofMillis(1));
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        Thread.sleep(300);
+        Span.current().addEvent("tool-event");
+        OTelCLIHelper.stopOTel();
+
+        List<EventData> events = TestSpanExporter.getSpans().get(0).getEvents();
+        assertEquals("tool-event", events.get(0).getName(), "Tool event was dropped");
+        long samples = events.stream().filter(e -> e.getName().equals("process.usage")).count();
+        assertTrue(samples > 1 && samples <= 10, "Samples were not capped: " + samples);
+
+        long last = events.get(events.size() - 1).getEpochNanos();
+        assertTrue(
+                last - events.get(1).getEpochNanos() > TimeUnit.MILLISECONDS.toNanos(100),
+                "Samples don't cover the execution");
+    }
+
+    private static volatile long spinCount;
+
+    private static void spin(AtomicBoolean done) {
+        while (!done.get()) {
+            spinCount++;
+        }
+    }
+
+    private static void idle(CountDownLatch done) {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void verifyProfiling(@TempDir Path tempDir) throws Exception {
+        TestSpanExporter.clear();
+        Path folded = tempDir.resolve("profile.folded");
+        OTelCLIHelper.enableProfiling(Duration.ofMillis(5), folded);
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        // Two threads with the same busy stack, so it outweighs any other runnable thread in the JVM
+        AtomicBoolean stopSpinning = new AtomicBoolean();
+        CountDownLatch stopIdling = new CountDownLatch(1);
+        Runnable spinner = () -> spin(stopSpinning);
+        List<Thread> threads = Arrays.asList(
+                new Thread(spinner),
+                new Thread(spinner),
+                new Thread(() -> idle(stopIdling)));
+        threads.forEach(Thread::start);
+        Thread.sleep(200);
+        stopSpinning.set(true);
+        stopIdling.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        OTelCLIHelper.stopOTel();
+
+        SpanData root = TestSpanExporter.getSpans().get(0);
+        assertEquals("cli.profile", root.getEvents().get(0).getName());
+
+        String summary = root.getEvents().get(0).getAttributes().get(AttributeKey.stringKey("profile.folded"));
+        assertFalse(summary.isEmpty(), "No profile summary");
+        assertTrue(summary.length() <= 4096, "Profile summary is too long: " + summary.length());
+        assertFalse(summary.contains("java.lang."), "Package names were not dropped: " + summary);
+        assertTrue(summary.split("\n")[0].contains("OTelCLiHelperTest.spin"), "Busy thread is not on top: " + summary);
+
+        String profile = String.join("\n", Files.readAllLines(folded));
+        assertFalse(profile.contains("OTelCLiHelperTest.idle"), "Waiting thread was sampled");
+        assertFalse(profile.contains("java.lang.Thread.sleep"), "Sleeping main thread was sampled");
+    }
+
     @Test
     public void testParseUrlWithFile(@TempDir Path tempDir)
             throws IOException {
@@ -74,6 +362,22 @@ public class OTelCLiHelperTest {
         assertEquals("content", EnvarExtractingPropagator.parseURL(numbers.toFile().toURI().toString()));
     }
 
+    @Test
+    public void testParseUrlWithInvalidUtf8(@TempDir Path tempDir)
+            throws IOException {
+        Path file = tempDir.resolve("testFile.txt");
+        Files.write(file, new byte[] { 'a', (byte) 0xff, 'b' });
+        assertEquals("a\ufffdb", EnvarExtractingPropagator.parseURL(file.toFile().toURI().toString()));
+    }
+
+    @Test
+    public void testParseUrlWithFileHost(@TempDir Path tempDir)
+            throws IOException {
+        Path file = tempDir.resolve("testFile.txt");
+        Files.write(file, Collections.singletonList("content"));
+        assertEquals("content", EnvarExtractingPropagator.parseURL("file://localhost" + file.toAbsolutePath()));
+    }
+
     @Test
     public void testParseUrlWithURL() {
         assertFalse(EnvarExtractingPropagator.parseURL("http://www.google.com").isEmpty());
@@ -84,4 +388,35 @@ public class OTelCLiHelperTest {
         String trace = "0af7651916cd43dd8448eb211c80319c";
         assertEquals(EnvarExtractingPropagator.parseURL(trace), trace);
     }
+
+    @Test
+    public void testParseUrlWithMultiLineFile(@TempDir Path tempDir)
+            throws IOException {
+        Path lines = tempDir.resolve("testFile.txt");
+        Files.write(lines, Arrays.asList("first", "second"));
+        assertEquals(
+                "first" + System.lineSeparator() + "second",
+                EnvarExtractingPropagator.parseURL(lines.toFile().toURI().toString()));
+    }
+
+    @Test
+    public void testTraceParentVersions() {
+        assertTrue(
+                OTelContextUtil.extractContextFromTraceParent("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                        .isValid());
+        assertTrue(
+                OTelContextUtil
+                        .extractContextFromTraceParent("cc-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01-extra")
+                        .isValid());
+        assertFalse(
+                OTelContextUtil.extractContextFromTraceParent("ff-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                        .isValid());
+        assertFalse(
+                OTelContextUtil.extractContextFromTraceParent("0A-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01")
+                        .isValid());
+        assertFalse(
+                OTelContextUtil
+                        .extractContextFromTraceParent("00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01-extra")
+                        .isValid());
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+import com.redhat.resilience.otel.internal.RetryingSpanExporter;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+public class RetryingSpanExporterTest {
+    @BeforeEach
+    public void otelSetup() {
+        TestSpanExporter.clear();
+    }
+
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+    }
+
+    /**
+     * Fails the given number of exports, then succeeds; successful spans go to {@link TestSpanExporter}.
+     */
+    private static class FlakyExporter
+            implements SpanExporter {
+        private int failures;
+
+        private int attempts = 0;
+
+        FlakyExporter(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+            attempts++;
+            if (failures-- > 0) {
+                return CompletableResultCode.ofFailure();
+            }
+            TestSpanExporter.record(spans);
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+
+    private static RetryingSpanExporter retrying(SpanExporter delegate, Path spool, long maxSpoolBytes) {
+        return new RetryingSpanExporter(
+                delegate,
+                spool,
+                3,
+                Duration.ofMillis(10),
+                Duration.ofSeconds(2),
+                maxSpoolBytes);
+    }
+
+    private static List<Path> spooled(Path spool) throws IOException {
+        if (!Files.isDirectory(spool)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(spool)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void runWithSpans(SpanExporter exporter, int count) {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(exporter));
+        Span.current().setAttribute("input-files", "a.txt,b.txt");
+        Span.current().setAttribute(AttributeKey.longArrayKey("sizes"), Arrays.asList(1L, 2L));
+        Span.current().addEvent("parsed");
+        Span.current().setStatus(StatusCode.ERROR, "failed build");
+        for (int i = 1; i < count; i++) {
+            GlobalOpenTelemetry.getTracer("cli-test").spanBuilder("child-" + i).startSpan().end();
+        }
+        OTelCLIHelper.stopOTel();
+    }
+
+    @Test
+    public void retriesFromDrainThread(@TempDir Path tempDir) throws Exception {
+        runWithSpans(new TestSpanExporter(), 1);
+        List<SpanData> spans = new ArrayList<>(TestSpanExporter.getSpans());
+        TestSpanExporter.clear();
+
+        Path spool = tempDir.resolve("spool");
+        FlakyExporter flaky = new FlakyExporter(2);
+        RetryingSpanExporter exporter = retrying(flaky, spool, Long.MAX_VALUE);
+        exporter.startDrain();
+        assertTrue(exporter.export(spans).join(1, TimeUnit.SECONDS).isSuccess(), "Failed export was not spooled");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!spooled(spool).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        exporter.shutdown().join(5, TimeUnit.SECONDS);
+
+        assertEquals(3, flaky.attempts, "Wrong number of attempts");
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Span was not exported");
+        assertTrue(spooled(spool).isEmpty(), "Span was left in the spool");
+    }
+
+    @Test
+    public void spoolsAndDrains(@TempDir Path tempDir) throws Exception {
+        Path spool = tempDir.resolve("spool");
+        runWithSpans(retrying(new FlakyExporter(Integer.MAX_VALUE), spool, Long.MAX_VALUE), 1);
+
+        assertTrue(TestSpanExporter.getSpans().isEmpty(), "Span was exported");
+        assertEquals(1, spooled(spool).size(), "Span was not spooled");
+
+        RetryingSpanExporter next = retrying(new FlakyExporter(0), spool, Long.MAX_VALUE);
+        next.startDrain();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!spooled(spool).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        next.shutdown().join(5, TimeUnit.SECONDS);
+
+        assertTrue(spooled(spool).isEmpty(), "Spool was not drained");
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Spooled span was not exported");
+
+        SpanData span = TestSpanExporter.getSpans().get(0);
+        assertEquals("cli-execution", span.getName());
+        assertEquals("a.txt,b.txt", span.getAttributes().get(AttributeKey.stringKey("input-files")));
+        assertEquals(Arrays.asList(1L, 2L), span.getAttributes().get(AttributeKey.longArrayKey("sizes")));
+        assertEquals("parsed", span.getEvents().get(0).getName());
+        assertEquals(StatusCode.ERROR, span.getStatus().getStatusCode());
+        assertEquals("failed build", span.getStatus().getDescription());
+        assertEquals("cli-test", span.getResource().getAttribute(AttributeKey.stringKey("service.name")));
+        assertTrue(span.getSpanContext().isValid(), "Invalid span context");
+    }
+
+    @Test
+    public void evictsOldestBatches(@TempDir Path tempDir) throws Exception {
+        Path spool = tempDir.resolve("spool");
+        runWithSpans(retrying(new FlakyExporter(Integer.MAX_VALUE), spool, Long.MAX_VALUE), 1);
+        long batchSize = Files.size(spooled(spool).get(0));
+
+        RetryingSpanExporter capped = retrying(new FlakyExporter(Integer.MAX_VALUE), spool, batchSize * 2);
+        List<Path> written = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(2);
+            List<Path> before = spooled(spool);
+            runWithSpans(capped, 1);
+            spooled(spool).stream().filter(file -> !before.contains(file)).forEach(written::add);
+        }
+
+        assertEquals(3, written.size(), "Wrong number of batches written: " + written);
+        assertEquals(written.subList(1, 3), spooled(spool), "Newest batches did not survive");
+    }
+
+    @Test
+    public void spoolsWithoutWaitingDuringOutage(@TempDir Path tempDir) throws IOException {
+        Path spool = tempDir.resolve("spool");
+        FlakyExporter flaky = new FlakyExporter(Integer.MAX_VALUE);
+        RetryingSpanExporter exporter = new RetryingSpanExporter(
+                flaky,
+                spool,
+                Integer.MAX_VALUE,
+                Duration.ofSeconds(1),
+                Duration.ofSeconds(5),
+                Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        runWithSpans(exporter, 10);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(10, spooled(spool).size(), "Spans were not spooled");
+        assertEquals(1, flaky.attempts, "Batches were attempted during the outage");
+        assertTrue(elapsed < 1000, "Exporting took " + elapsed + "ms for 10 batches");
+    }
+
+    @Test
+    public void quarantinesCorruptBatches(@TempDir Path tempDir) throws Exception {
+        Path spool = tempDir.resolve("spool");
+        Files.createDirectories(spool);
+        // Format version 2, then a span count far beyond the size of the file
+        Path corrupt = spool.resolve("0000000000000-corrupt.spans");
+        Files.write(corrupt, new byte[] { 2, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff });
+        runWithSpans(retrying(new FlakyExporter(Integer.MAX_VALUE), spool, Long.MAX_VALUE), 1);
+
+        RetryingSpanExporter next = retrying(new FlakyExporter(0), spool, Long.MAX_VALUE);
+        next.startDrain();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (spooled(spool).size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        next.shutdown().join(5, TimeUnit.SECONDS);
+
+        assertEquals(
+                Arrays.asList(spool.resolve("0000000000000-corrupt.spans.draining.corrupt")),
+                spooled(spool),
+                "Corrupt batch was not quarantined");
+        assertEquals(1, TestSpanExporter.getSpans().size(), "Good batch was not exported");
+    }
+}
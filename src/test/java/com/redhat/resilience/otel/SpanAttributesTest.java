@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.sdk.trace.SpanLimits;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
+
+public class SpanAttributesTest {
+    @BeforeEach
+    public void otelSetup() {
+        TestSpanExporter.clear();
+    }
+
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+        OTelCLIHelper.setSpanLimits(null);
+    }
+
+    @Test
+    public void lazyAttributeOnRecordingSpan() {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        OTelCLIHelper.setAttribute("input-files", () -> "a.txt,b.txt");
+        OTelCLIHelper.setAttribute(AttributeKey.longKey("input-count"), () -> 2L);
+        OTelCLIHelper.stopOTel();
+
+        Attributes attributes = TestSpanExporter.getSpans().get(0).getAttributes();
+        assertEquals("a.txt,b.txt", attributes.get(AttributeKey.stringKey("input-files")));
+        assertEquals(2L, attributes.get(AttributeKey.longKey("input-count")));
+    }
+
+    @Test
+    public void lazyAttributeOnUnsampledSpan() throws Exception {
+        // the parent's trace flags say it wasn't sampled, so neither is this execution
+        new EnvironmentVariables("TRACEPARENT", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-00")
+                .execute(
+                        () -> OTelCLIHelper.startOTel(
+                                "cli-test",
+                                SimpleSpanProcessor.create(new TestSpanExporter())));
+
+        AtomicInteger calls = new AtomicInteger();
+        OTelCLIHelper.setAttribute("input-files", () -> {
+            calls.incrementAndGet();
+            return "a.txt,b.txt";
+        });
+        OTelCLIHelper.stopOTel();
+
+        assertEquals(0, calls.get(), "Value computed for an unsampled span");
+        assertTrue(TestSpanExporter.getSpans().isEmpty(), "Unsampled span was exported");
+    }
+
+    @Test
+    public void spanLimits() {
+        OTelCLIHelper.setSpanLimits(
+                SpanLimits.builder()
+                        .setMaxNumberOfAttributes(2)
+                        .setMaxAttributeValueLength(4)
+                        .setMaxNumberOfEvents(1)
+                        .build());
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        OTelCLIHelper.setAttribute("one", () -> "first value");
+        OTelCLIHelper.setAttribute("two", () -> "second value");
+        OTelCLIHelper.setAttribute("three", () -> "third value");
+        Span.current().addEvent("event-one").addEvent("event-two");
+        OTelCLIHelper.stopOTel();
+
+        Attributes attributes = TestSpanExporter.getSpans().get(0).getAttributes();
+        assertEquals(2, attributes.size(), "Attribute limit not applied");
+        assertEquals("firs", attributes.get(AttributeKey.stringKey("one")), "Value length limit not applied");
+        assertEquals(1, TestSpanExporter.getSpans().get(0).getEvents().size(), "Event limit not applied");
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redhat.resilience.otel.internal.SpoolDrainer;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+public class SpoolDrainerTest {
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+    }
+
+    /**
+     * Records the size of each exported batch, failing while {@link #failing} is set.
+     */
+    private static class BatchRecorder
+            implements SpanExporter {
+        private final List<Integer> batches = new ArrayList<>();
+
+        private volatile boolean failing;
+
+        @Override
+        public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+            if (failing) {
+                return CompletableResultCode.ofFailure();
+            }
+            batches.add(spans.size());
+            return CompletableResultCode.ofSuccess();
+        }
+
+        synchronized List<Integer> getBatches() {
+            return new ArrayList<>(batches);
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+
+    private static void runTool(Path spool, String name) {
+        OTelCLIHelper.startOTel(name, SimpleSpanProcessor.create(OTelCLIHelper.spoolingSpanExporter(spool)));
+        GlobalOpenTelemetry.getTracer(name).spanBuilder("work").startSpan().end();
+        OTelCLIHelper.stopOTel();
+    }
+
+    private static long spooled(Path spool) throws IOException {
+        try (Stream<Path> files = Files.list(spool)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void combinesToolBatches(@TempDir Path spool) throws IOException {
+        for (int i = 0; i < 5; i++) {
+            runTool(spool, "tool-" + i);
+        }
+        assertEquals(10, spooled(spool), "Wrong number of spooled batches");
+
+        BatchRecorder recorder = new BatchRecorder();
+        try (SpoolDrainer drainer = new SpoolDrainer(
+                recorder,
+                spool,
+                2048,
+                Duration.ofHours(1),
+                Duration.ofSeconds(5))) {
+            // closing drains
+        }
+
+        int total = recorder.getBatches().stream().mapToInt(Integer::intValue).sum();
+        assertEquals(10, total, "Wrong number of exported spans");
+        assertTrue(recorder.getBatches().size() < 10, "Batches were not combined: " + recorder.getBatches());
+        assertEquals(0, spooled(spool), "Spool was not emptied");
+    }
+
+    @Test
+    public void keepsBatchesWhenExportFails(@TempDir Path spool) throws IOException {
+        runTool(spool, "tool");
+
+        BatchRecorder recorder = new BatchRecorder();
+        recorder.failing = true;
+        try (SpoolDrainer drainer = new SpoolDrainer(
+                recorder,
+                spool,
+                1,
+                Duration.ofHours(1),
+                Duration.ofSeconds(5))) {
+            assertEquals(0, drainer.drainOnce(), "Failed export was counted");
+            assertEquals(2, spooled(spool), "Claimed batches were not released");
+
+            recorder.failing = false;
+            assertEquals(1, drainer.drainOnce(), "Batch limit was not applied");
+        }
+
+        assertEquals(0, spooled(spool), "Spool was not emptied");
+    }
+
+    @Test
+    public void leavesTimedOutExportsClaimed(@TempDir Path spool) throws IOException {
+        runTool(spool, "tool");
+
+        List<CompletableResultCode> results = new ArrayList<>();
+        SpanExporter slow = new BatchRecorder() {
+            @Override
+            public synchronized CompletableResultCode export(Collection<SpanData> spans) {
+                CompletableResultCode result = new CompletableResultCode();
+                results.add(result);
+                return result;
+            }
+        };
+
+        SpoolDrainer drainer = new SpoolDrainer(slow, spool, 2048, Duration.ofHours(1), Duration.ofMillis(50));
+        assertEquals(0, drainer.drainOnce(), "Timed out export was counted");
+        assertEquals(0, drainer.drainOnce(), "Claimed batches were exported again");
+        assertEquals(1, results.size(), "Claimed batches were exported again");
+        assertEquals(2, spooled(spool), "Claimed batches were not kept");
+
+        results.get(0).fail();
+        assertEquals(2, spooled(spool), "Failed batches were not released");
+        assertEquals(0, drainer.drainOnce(), "Timed out export was counted");
+        assertEquals(2, results.size(), "Released batches were not exported again");
+
+        results.get(1).succeed();
+        assertEquals(0, spooled(spool), "Exported batches were not deleted");
+    }
+
+    @Test
+    public void deletesOrphanedTempFiles(@TempDir Path spool) throws IOException {
+        Path orphaned = Files.createFile(spool.resolve("0000000000000-crashed.tmp"));
+        long anHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        Files.setLastModifiedTime(orphaned, FileTime.fromMillis(anHourAgo));
+        Path writing = Files.createFile(spool.resolve("9999999999999-writing.tmp"));
+
+        try (SpoolDrainer drainer = new SpoolDrainer(
+                new BatchRecorder(),
+                spool,
+                2048,
+                Duration.ofHours(1),
+                Duration.ofSeconds(5))) {
+            assertEquals(0, drainer.drainOnce(), "Temporary files were exported");
+        }
+
+        assertFalse(Files.exists(orphaned), "Orphaned temporary file was not deleted");
+        assertTrue(Files.exists(writing), "Temporary file being written was deleted");
+    }
+
+    @Test
+    public void startsInBackground(@TempDir Path spool) throws Exception {
+        runTool(spool, "tool");
+
+        BatchRecorder recorder = new BatchRecorder();
+        try (SpanSpoolDrainer drainer = OTelCLIHelper.startSpoolDrainer(recorder, spool, Duration.ofMillis(20))) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (spooled(spool) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, spooled(spool), "Spool was not drained in the background");
+        }
+
+        assertEquals(2, recorder.getBatches().stream().mapToInt(Integer::intValue).sum(), "Spans were not exported");
+    }
+}
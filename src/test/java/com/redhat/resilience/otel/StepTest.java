@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+public class StepTest {
+    @BeforeEach
+    public void otelSetup() {
+        TestSpanExporter.clear();
+    }
+
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+        OTelCLIHelper.disableStepTimer();
+    }
+
+    private static Map<String, SpanData> spansByName() {
+        return TestSpanExporter.getSpans()
+                .stream()
+                .collect(Collectors.toMap(SpanData::getName, Function.identity()));
+    }
+
+    @Test
+    public void stepWithoutOTel() throws Exception {
+        try (Step step = OTelCLIHelper.step("parse")) {
+            assertEquals(42, (int) OTelCLIHelper.step("resolve", () -> 42));
+        }
+
+        assertTrue(TestSpanExporter.getSpans().isEmpty(), "Spans recorded without OTel");
+    }
+
+    @Test
+    public void nestedStepSpans() throws Exception {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        try (Step build = OTelCLIHelper.step("build")) {
+            OTelCLIHelper.step("compile", () -> {
+            });
+        }
+        OTelCLIHelper.stopOTel();
+
+        Map<String, SpanData> spans = spansByName();
+        assertEquals(3, spans.size(), "Incorrect span count!");
+        assertEquals(spans.get("cli-execution").getSpanId(), spans.get("build").getParentSpanId());
+        assertEquals(spans.get("build").getSpanId(), spans.get("compile").getParentSpanId());
+    }
+
+    @Test
+    public void timedStepsAboveThreshold() throws Exception {
+        OTelCLIHelper.enableStepTimer(16, Duration.ofMillis(20));
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        try (Step parse = OTelCLIHelper.step("parse")) {
+            // too quick to be exported
+        }
+        try (Step build = OTelCLIHelper.step("build")) {
+            try (Step compile = OTelCLIHelper.step("compile")) {
+                Thread.sleep(30);
+            }
+            OTelCLIHelper.step("quick", () -> {
+            });
+        }
+        try (Step upload = OTelCLIHelper.step("upload")) {
+            Thread.sleep(30);
+        }
+
+        assertTrue(TestSpanExporter.getSpans().isEmpty(), "Timed steps exported before stop");
+        OTelCLIHelper.stopOTel();
+
+        Map<String, SpanData> spans = spansByName();
+        assertEquals(4, spans.size(), "Incorrect span count: " + spans.keySet());
+
+        String rootId = spans.get("cli-execution").getSpanId();
+        assertEquals(rootId, spans.get("build").getParentSpanId());
+        assertEquals(spans.get("build").getSpanId(), spans.get("compile").getParentSpanId());
+        assertEquals(rootId, spans.get("upload").getParentSpanId());
+
+        SpanData compile = spans.get("compile");
+        assertTrue(compile.getEndEpochNanos() - compile.getStartEpochNanos() >= Duration.ofMillis(30).toNanos());
+        assertTrue(compile.getStartEpochNanos() >= spans.get("build").getStartEpochNanos());
+    }
+
+    @Test
+    public void timedStepsPerThread() throws Exception {
+        OTelCLIHelper.enableStepTimer(16, Duration.ZERO);
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        try (Step build = OTelCLIHelper.step("build")) {
+            Thread worker = new Thread(() -> {
+                try (Step item = OTelCLIHelper.step("item")) {
+                    OTelCLIHelper.step("item-work", () -> {
+                    });
+                }
+            });
+            worker.start();
+            worker.join();
+            OTelCLIHelper.step("compile", () -> {
+            });
+        }
+
+        // closed out of order: the step after them still nests in "outer"
+        try (Step outer = OTelCLIHelper.step("outer")) {
+            Step first = OTelCLIHelper.step("first");
+            Step second = OTelCLIHelper.step("second");
+            first.close();
+            second.close();
+            OTelCLIHelper.step("after", () -> {
+            });
+        }
+        OTelCLIHelper.stopOTel();
+
+        Map<String, SpanData> spans = spansByName();
+        String rootId = spans.get("cli-execution").getSpanId();
+        assertEquals(rootId, spans.get("item").getParentSpanId(), "Worker step nested in the main thread's step");
+        assertEquals(spans.get("item").getSpanId(), spans.get("item-work").getParentSpanId());
+        assertEquals(spans.get("build").getSpanId(), spans.get("compile").getParentSpanId());
+        assertEquals(spans.get("outer").getSpanId(), spans.get("after").getParentSpanId(), "Out of order close");
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+import com.redhat.resilience.otel.internal.TraceContextManifest;
+
+import io.opentelemetry.api.baggage.Baggage;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.sdk.trace.SpanLimits;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+public class TraceContextManifestTest {
+    private static final int ITEMS = 5000;
+
+    @BeforeEach
+    public void otelSetup() {
+        TestSpanExporter.clear();
+    }
+
+    @AfterEach
+    public void otelTeardown() {
+        OTelCLIHelper.stopOTel();
+        OTelCLIHelper.setSpanLimits(null);
+    }
+
+    private static String traceId(int item) {
+        return String.format("%032x", item + 1);
+    }
+
+    private static Path writeManifest(Path dir) throws IOException {
+        Path manifest = dir.resolve("manifest.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            writer.write("# upstream pipelines\n\nnot-a-traceparent\n");
+            for (int i = 0; i < ITEMS; i++) {
+                writer.write("00-" + traceId(i) + "-b9c7c989f97918e1-01\trojo=" + i + "\n");
+            }
+        }
+        return manifest;
+    }
+
+    @Test
+    public void parseLine() {
+        SpanContext spanContext = TraceContextManifest
+                .parse("  00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01   rojo=00f067aa0ba902b7 ");
+        assertEquals("0af7651916cd43dd8448eb211c80319c", spanContext.getTraceId(), "Wrong trace ID");
+        assertEquals("00f067aa0ba902b7", spanContext.getTraceState().get("rojo"), "Wrong trace state");
+
+        assertFalse(TraceContextManifest.parse("# comment").isValid(), "Comment was parsed");
+        assertFalse(TraceContextManifest.parse("").isValid(), "Blank line was parsed");
+    }
+
+    @Test
+    public void linkRootToManifest(@TempDir Path dir) throws IOException {
+        OTelCLIHelper.setSpanLimits(SpanLimits.builder().setMaxNumberOfLinks(ITEMS).build());
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        assertEquals(ITEMS, OTelCLIHelper.linkManifest(writeManifest(dir)), "Wrong number of items");
+        OTelCLIHelper.stopOTel();
+
+        SpanData root = TestSpanExporter.getSpans().get(0);
+        assertEquals(ITEMS, root.getLinks().size(), "Wrong number of links");
+
+        Set<String> linked = root.getLinks()
+                .stream()
+                .map(link -> link.getSpanContext().getTraceId())
+                .collect(Collectors.toSet());
+        assertTrue(linked.contains(traceId(0)) && linked.contains(traceId(ITEMS - 1)), "Missing links");
+    }
+
+    @Test
+    public void childSpanPerItem(@TempDir Path dir) throws IOException {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+        SpanContext rootContext = Span.current().getSpanContext();
+
+        Set<String> seen = new HashSet<>();
+        long count = OTelCLIHelper.forEachManifestItem(writeManifest(dir), "item", upstream -> {
+            assertEquals(upstream.getTraceId(), Span.current().getSpanContext().getTraceId(), "Item span not current");
+            synchronized (seen) {
+                seen.add(upstream.getTraceState().get("rojo"));
+            }
+        });
+        OTelCLIHelper.stopOTel();
+
+        assertEquals(ITEMS, count, "Wrong number of items");
+        assertEquals(ITEMS, seen.size(), "Items were missed or repeated");
+
+        List<SpanData> items = TestSpanExporter.getSpans()
+                .stream()
+                .filter(s -> s.getName().equals("item"))
+                .collect(Collectors.toList());
+        assertEquals(ITEMS, items.size(), "Wrong number of item spans");
+
+        SpanData item = items.get(0);
+        assertEquals("b9c7c989f97918e1", item.getParentSpanId(), "Item is not a child of its upstream context");
+        assertEquals(rootContext, item.getLinks().get(0).getSpanContext(), "Item is not linked to the root span");
+    }
+
+    @Test
+    public void itemsKeepBaggage(@TempDir Path dir) throws IOException {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        Set<String> users = new HashSet<>();
+        try (Scope ignored = Baggage.builder().put("user", "alice").build().makeCurrent()) {
+            OTelCLIHelper.forEachManifestItem(writeManifest(dir), "item", upstream -> {
+                synchronized (users) {
+                    users.add(Baggage.current().getEntryValue("user"));
+                }
+            });
+        }
+        OTelCLIHelper.stopOTel();
+
+        assertEquals(Collections.singleton("alice"), users, "Baggage was not kept for the items");
+    }
+
+    @Test
+    public void failedItemsAreRecorded(@TempDir Path dir) throws IOException {
+        OTelCLIHelper.startOTel("cli-test", SimpleSpanProcessor.create(new TestSpanExporter()));
+
+        AtomicInteger calls = new AtomicInteger();
+        Path manifest = writeManifest(dir);
+        assertThrows(
+                IllegalStateException.class,
+                () -> OTelCLIHelper.forEachManifestItem(manifest, "item", upstream -> {
+                    calls.incrementAndGet();
+                    if (upstream.getTraceId().equals(traceId(7))) {
+                        throw new IllegalStateException("bad item");
+                    }
+                }));
+        OTelCLIHelper.stopOTel();
+
+        assertEquals(ITEMS, calls.get(), "Remaining items were not processed");
+        long failed = TestSpanExporter.getSpans()
+                .stream()
+                .filter(s -> s.getStatus().getStatusCode() == StatusCode.ERROR)
+                .count();
+        assertEquals(1, failed, "Failure was not recorded");
+    }
+
+    private static long manifestWorkers() {
+        return Thread.getAllStackTraces()
+                .keySet()
+                .stream()
+                .filter(thread -> thread.getName().startsWith("otel-manifest-"))
+                .count();
+    }
+
+    @Test
+    public void readFailureStopsWorkers(@TempDir Path dir) throws IOException {
+        // Malformed UTF-8 between two copies of the manifest, so the failure happens mid-read
+        Path manifest = writeManifest(dir);
+        byte[] items = Files.readAllBytes(manifest);
+        Files.write(manifest, new byte[] { (byte) 0xff, '\n' }, StandardOpenOption.APPEND);
+        Files.write(manifest, items, StandardOpenOption.APPEND);
+
+        AtomicInteger calls = new AtomicInteger();
+        assertThrows(IOException.class, () -> TraceContextManifest.forEach(manifest, 4, upstream -> {
+            calls.incrementAndGet();
+        }));
+        assertTrue(calls.get() <= ITEMS, "Items were handled after the failure: " + calls.get());
+        assertEquals(0, manifestWorkers(), "Workers were left running");
+    }
+
+    @Test
+    public void interruptStopsWorkers(@TempDir Path dir) throws IOException {
+        Path manifest = writeManifest(dir);
+
+        Thread.currentThread().interrupt();
+        try {
+            RuntimeException e = assertThrows(RuntimeException.class,
+                    () -> TraceContextManifest.forEach(manifest, 4, upstream -> {
+                    }));
+            assertTrue(e.getCause() instanceof InterruptedException, "Wrong failure: " + e);
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(0, manifestWorkers(), "Workers were left running");
+    }
+}
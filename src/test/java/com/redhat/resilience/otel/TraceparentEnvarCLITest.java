@@ -27,7 +27,6 @@ import org.junit.jupiter.api.TestInfo;
 
 import com.redhat.resilience.otel.fixture.TestSpanExporter;
 
-import io.opentelemetry.api.GlobalOpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.TraceState;
 import io.opentelemetry.sdk.trace.data.SpanData;
@@ -60,7 +59,6 @@ public class TraceparentEnvarCLITest {
     @AfterEach
     public void otelTeardown() {
         OTelCLIHelper.stopOTel();
-        GlobalOpenTelemetry.resetForTest();
     }
 
     @Test
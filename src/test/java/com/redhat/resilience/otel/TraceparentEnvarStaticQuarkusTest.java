@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.redhat.resilience.otel.fixture.StaticTestProfile;
+import com.redhat.resilience.otel.fixture.TestSpanExporter;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import uk.org.webcompere.systemstubs.environment.EnvironmentVariables;
+
+/**
+ * The 'envar-static' propagator is created while Quarkus starts, before the TRACEPARENT set here exists, so this
+ * checks that it is resolved on the first request, and then kept.
+ */
+@QuarkusTest
+@TestProfile(StaticTestProfile.class)
+public class TraceparentEnvarStaticQuarkusTest {
+    private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+
+    private static final String LATER_TRACE_ID = "11111111111111111111111111111111";
+
+    private static final String SPAN_ID = "b9c7c989f97918e1";
+
+    @Test
+    public void resolvesOnFirstRequest() throws Exception {
+        TestSpanExporter.clear();
+
+        new EnvironmentVariables("TRACEPARENT", "00-" + TRACE_ID + "-" + SPAN_ID + "-01")
+                .execute(() -> given().when().get("/test").then().statusCode(200));
+        new EnvironmentVariables("TRACEPARENT", "00-" + LATER_TRACE_ID + "-" + SPAN_ID + "-01")
+                .execute(() -> given().when().get("/test").then().statusCode(200));
+
+        String[] traceLines = given().when().get("/spans").thenReturn().getBody().asString().split("\n");
+        assertEquals(4, traceLines.length, "Wrong number of spans");
+        for (String line : traceLines) {
+            assertEquals(TRACE_ID, line.split(",")[0], "Incorrect trace ID!");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.fixture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for an OTLP/HTTP collector. Every request is delayed by a fixed latency, and every Nth request
+ * fails, so runs against it are deterministic.
+ */
+public class FakeOtlpReceiver
+        implements AutoCloseable {
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long latencyMillis;
+
+    private final int failEvery;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Start the receiver on an ephemeral local port.
+     *
+     * @param latencyMillis The delay added to every request
+     * @param failEvery Every Nth request gets a 400 response; 0 disables failures
+     * @throws IOException If the server can't be started
+     */
+    public FakeOtlpReceiver(long latencyMillis, int failEvery) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.failEvery = failEvery;
+
+        executor = Executors.newFixedThreadPool(4);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/traces", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long count = requests.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.addAndGet(read);
+            }
+        }
+
+        try {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int status = 200;
+        if (failEvery > 0 && count % failEvery == 0) {
+            failures.incrementAndGet();
+            status = 400;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-protobuf");
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/traces";
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
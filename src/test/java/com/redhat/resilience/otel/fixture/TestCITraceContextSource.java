@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2022 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.redhat.resilience.otel.fixture;
+
+import com.redhat.resilience.otel.TraceParentTraceContextSource;
+
+/**
+ * Stands in for a CI system with its own trace context variables; registered in the test META-INF/services.
+ */
+public class TestCITraceContextSource
+        extends TraceParentTraceContextSource {
+    public TestCITraceContextSource() {
+        super("test-ci", 10, "TEST_CI_TRACEPARENT", "TEST_CI_TRACESTATE");
+    }
+}